@@ -0,0 +1,118 @@
+# -*- coding: utf-8 -*-
+
+"""
+AppCDS archives of the jars, to skip most of the class loading at the start of the JVM.
+An archive is created next to its jar (jars/checkstyle-8.33-all.jsa) by a training run
+and used by core.call_java, checkstyle and the Checkstyle server as soon as it exists.
+The archive of the server is the one of its jar (jars/server/checkstyle-8.33-all-server.jsa).
+Requires a JDK >= 13 (-XX:ArchiveClassesAtExit), an archive is ignored by another JDK.
+
+python appcds.py create <jar> [training args...]
+python appcds.py create-checkstyle
+python appcds.py bench <jar> [runs] [args...]
+"""
+
+import time
+
+from core import *
+import checkstyle
+
+_TRAINING_FILES = 50
+_TRAINING_CONFIG = '/sun_checks.xml'
+
+def get_training_files():
+    """
+    A few java files of the real error datasets, to load the classes of the checks
+    """
+    files = sorted(glob.glob(os.path.join(get_output_dir(), '*', 'real_error_dataset', '1', '*', '*.java')))
+    return files[:_TRAINING_FILES]
+
+def is_checkstyle_jar(jar):
+    return os.path.basename(jar).startswith('checkstyle-')
+
+def get_training_args(jar):
+    if is_checkstyle_jar(jar):
+        return ['-c', _TRAINING_CONFIG] + get_training_files()
+    return []
+
+def create_archive(jar, args=None):
+    """
+    Create the archive of a jar with a training run, the classes loaded by the run are archived
+    """
+    if args is None:
+        args = get_training_args(jar)
+    archive = get_cds_archive(jar)
+    cmd = ['java', f'-XX:ArchiveClassesAtExit={archive}', '-jar', jar] + args
+    process = subprocess.run(cmd, stdout=subprocess.DEVNULL, stderr=subprocess.PIPE)
+    if not os.path.exists(archive):
+        log_archive_failure(jar, process.stderr)
+        return None
+    return archive
+
+def create_server_archive(jar):
+    """
+    Create the archive of the Checkstyle server of a jar with a training request
+    """
+    server_jar = checkstyle.compile_server(jar)
+    archive = get_cds_archive(server_jar)
+    # same class path as checkstyle.CheckstyleServer, an archive is only used with its class path
+    cmd = ['java', f'-XX:ArchiveClassesAtExit={archive}', '-cp', f'{jar}:{server_jar}', 'CheckstyleServer']
+    process = subprocess.Popen(cmd, stdin=subprocess.PIPE, stdout=subprocess.DEVNULL, stderr=subprocess.PIPE)
+    request = [f'CHECK {_TRAINING_CONFIG}'] + [ f'FILE {file}' for file in get_training_files() ] + ['END']
+    _, stderr = process.communicate(('\n'.join(request) + '\n').encode('utf-8'))
+    if not os.path.exists(archive):
+        log_archive_failure(server_jar, stderr)
+        return None
+    return archive
+
+def log_archive_failure(jar, stderr):
+    """
+    The JVM tells why it did not create the archive (JDK < 13, directories in the class path...)
+    """
+    logger.warning(f'No archive created for {jar}:\n{stderr.decode("utf-8", errors="replace").strip()}')
+
+def create_checkstyle_archives():
+    archives = []
+    for jar in tqdm(checkstyle._CHECKSTYLE_JARS, desc='jar'):
+        jar_path = os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, jar)
+        if os.path.exists(jar_path):
+            archives += [create_archive(jar_path), create_server_archive(jar_path)]
+    return [ archive for archive in archives if archive is not None ]
+
+def time_run(cmd):
+    start = time.perf_counter()
+    subprocess.run(cmd, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+    return time.perf_counter() - start
+
+def bench(jar, runs=10, args=None):
+    """
+    Wall time of the same run with and without the archive, the runs are interleaved
+    :return: {'without': [seconds], 'with': [seconds]}
+    """
+    if args is None:
+        args = get_training_args(jar)[:3] if is_checkstyle_jar(jar) else []
+    archive = get_cds_archive(jar)
+    if not os.path.exists(archive):
+        raise Exception(f'No archive for {jar}, run `python appcds.py create {jar}` first')
+    times = { 'without': [], 'with': [] }
+    for _ in tqdm(range(runs)):
+        times['without'].append(time_run(['java', '-jar', jar] + args))
+        times['with'].append(time_run(['java'] + get_java_options(jar) + ['-jar', jar] + args))
+    return times
+
+def median(values):
+    return sorted(values)[len(values) // 2]
+
+if __name__ == "__main__":
+    if sys.argv[1] == "create":
+        print(create_archive(sys.argv[2], sys.argv[3:] if len(sys.argv) > 3 else None))
+    elif sys.argv[1] == "create-checkstyle":
+        for archive in create_checkstyle_archives():
+            print(archive)
+    elif sys.argv[1] == "bench":
+        runs = int(sys.argv[3]) if len(sys.argv) > 3 else 10
+        times = bench(sys.argv[2], runs, sys.argv[4:] if len(sys.argv) > 4 else None)
+        without, with_archive = median(times['without']), median(times['with'])
+        print(f'without archive: {without * 1000:.0f} ms (median of {runs})')
+        print(f'with archive:    {with_archive * 1000:.0f} ms (median of {runs})')
+        print(f'speedup:         {without / with_archive:.2f}x')
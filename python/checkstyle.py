@@ -9,8 +9,20 @@ import xml.etree.ElementTree as ET
 import subprocess
 import sys
 import re
+import atexit
+import hashlib
+import sqlite3
+import heapq
+from concurrent.futures import ThreadPoolExecutor
+import threading
+import io
+import tempfile
+import zipfile
+from collections import OrderedDict
 
 from core import *
+import prevalidator
+import window_stub
 
 dir_path = os.path.dirname(os.path.realpath(__file__))
 
@@ -53,37 +65,796 @@ _CHECKSTYLE_JARS = [
     'checkstyle-8.0-all.jar'
 ]
 _CHECKSTYLE_JAR = os.path.join(_CHECKSTYLE_JARS_DIR, _CHECKSTYLE_JARS[0])
+_EXCLUDE_REGEXPS = ('.*/test/.*', '.*/resources/.*')
 
-def check(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=False, only_java=False):
+_SERVER_SOURCE = os.path.join(dir_path, 'checkstyle_server', 'CheckstyleServer.java')
+_SERVER_BUILD_DIR = os.path.join(_CHECKSTYLE_JARS_DIR, 'server')
+
+def check(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=False, only_java=False, parallelism=None):
     """
     Runs Checkstyle on the file_to_checkstyle_path
+    :param parallelism: number of concurrent Checkstyle processes, [CHECKSTYLE] parallelism by default
+    """
+    checkstyle_file_path = compile_config(checkstyle_file_path, get_config_mode(only_targeted))
+    checkstyle_jar = os.path.join(_CHECKSTYLE_JARS_DIR, checkstyle_jar)
+    if parallelism is None:
+        parallelism = core_config.getint('CHECKSTYLE', 'parallelism', fallback=1)
+    if not is_server_enabled() and not is_cache_enabled() and parallelism <= 1:
+        return run_checkstyle(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar, only_targeted=only_targeted, only_java=only_java)
+    files = list_files(file_to_checkstyle_path)
+    if not is_cache_enabled():
+        return check_files(checkstyle_file_path, files, checkstyle_jar, only_targeted=only_targeted, only_java=only_java, parallelism=parallelism)
+
+    # only the files that are not in the cache are sent to Checkstyle
+    cache = get_cache()
+    output, misses = cache.get(checkstyle_file_path, checkstyle_jar, only_targeted, files)
+    returncode = count_errors(output)
+    if len(misses) > 0:
+        misses_output, misses_returncode = check_files(checkstyle_file_path, list(misses.keys()), checkstyle_jar, only_targeted=only_targeted, parallelism=parallelism)
+        if misses_output is None:
+            return (None, misses_returncode)
+        cache.put(checkstyle_file_path, checkstyle_jar, only_targeted, {
+            misses[file]:result
+            for file, result in misses_output.items()
+            if file in misses and not is_failure_result(result)
+        })
+        output.update(misses_output)
+        returncode += misses_returncode
+    if only_java:
+        output = { file:result for file, result in output.items() if file.endswith('.java') }
+    return (output, returncode)
+
+def check_multi(checkstyle_file_path, targets, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=False, only_java=False, parallelism=None):
+    """
+    Runs Checkstyle once on several directories with the same config and jar
+    :param targets: {target_name: path}
+    :return: {target_name: (output, number of errors)}
+    """
+    paths = [ path for path in targets.values() if os.path.exists(path) ]
+    if len(paths) == 0:
+        return { target:({}, 0) for target in targets }
+    output, returncode = check(checkstyle_file_path, ' '.join(paths), checkstyle_jar, only_targeted=only_targeted, only_java=only_java, parallelism=parallelism)
+    if output is None:
+        return { target:(None, returncode) for target in targets }
+    # the longest prefix first, so that a nested target gets its own files
+    prefixes = sorted(
+        [ (to_checkstyle_path(path) + '/', target) for target, path in targets.items() ],
+        key=lambda prefix: -len(prefix[0])
+    )
+    outputs = { target:{} for target in targets }
+    for file, result in output.items():
+        for prefix, target in prefixes:
+            if file.startswith(prefix):
+                outputs[target][file] = result
+                break
+    return { target:(target_output, count_errors(target_output)) for target, target_output in outputs.items() }
+
+def check_counts(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar=_CHECKSTYLE_JAR, threshold=2, only_java=True):
+    """
+    Validation mode that only tells how many targeted errors a file has, up to threshold.
+    The certain violations found by the prevalidator are counted without Checkstyle,
+    and the server stops auditing a file once it reaches the threshold.
+    :return: ({file: {'count': min(number of errors, threshold), 'first': first of the errors found or None}}, number of errors)
+    """
+    files = list_files(file_to_checkstyle_path)
+    if only_java:
+        files = [ file for file in files if file.endswith('.java') ]
+    checkstyle_prevalidator = prevalidator.get_prevalidator(checkstyle_file_path, checkstyle_jar)
+    output = {}
+    to_check = []
+    for file in files:
+        errors = []
+        if file.endswith('.java'):
+            errors = filter_targeted_error(checkstyle_prevalidator.validate(open_file(file)))
+        if len(errors) >= threshold:
+            output[file] = { 'errors': errors }
+        else:
+            to_check.append(file)
+
+    if len(to_check) > 0:
+        checked = None
+        if is_server_enabled():
+            compiled_path = compile_config(checkstyle_file_path, get_config_mode(True))
+            jar_path = os.path.join(_CHECKSTYLE_JARS_DIR, checkstyle_jar)
+            try:
+                server_output, returncode = get_server(jar_path).check(compiled_path, to_check, limit=threshold)
+                checked = parse_output(server_output, only_targeted=True, only_java=only_java)
+            except Exception as err:
+                logger.warning(f'{err}, the files are checked by new processes')
+        if checked is None:
+            checked, returncode = check(checkstyle_file_path, ' '.join(to_check), checkstyle_jar, only_targeted=True, only_java=only_java)
+        if checked is None:
+            return (None, returncode)
+        for file in to_check:
+            output[file] = checked.get(file, { 'errors': [] })
+
+    counts = { file:to_count(result, threshold) for file, result in output.items() }
+    return (counts, sum([ count['count'] for count in counts.values() ]))
+
+def check_counts_by_window(checkstyle_file_path, changes, checkstyle_jar=_CHECKSTYLE_JAR, threshold=2):
+    """
+    check_counts for files modified locally (repairs), given as {file: original file}.
+    The java files of at least [CHECKSTYLE] window_check_min_lines lines (0: never) are validated
+    on a stub around their changed lines (see check_windows), the other files by check_counts
+    :return: same as check_counts
+    """
+    min_lines = core_config.getint('CHECKSTYLE', 'window_check_min_lines', fallback=0)
+    checkstyle_prevalidator = prevalidator.get_prevalidator(checkstyle_file_path, checkstyle_jar)
+    counts = {}
+    windows = {}
+    others = []
+    for file, original in changes.items():
+        content = open_file(file) if min_lines > 0 and file.endswith('.java') else None
+        changed_lines = None
+        if content is not None and content.count('\n') >= min_lines:
+            changed_lines = window_stub.get_changed_lines(open_file(original), content)
+        if changed_lines is None:
+            others.append(file)
+            continue
+        file = to_checkstyle_path(file)
+        errors = filter_targeted_error(checkstyle_prevalidator.validate(content))
+        if len(errors) >= threshold:
+            counts[file] = to_count({ 'errors': errors }, threshold)
+        else:
+            windows[file] = changed_lines
+    if len(windows) > 0:
+        output, returncode = check_windows(checkstyle_file_path, windows, checkstyle_jar)
+        if output is None:
+            return (None, returncode)
+        for file in windows:
+            counts[file] = to_count(output.get(file, { 'errors': [] }), threshold)
+    if len(others) > 0:
+        others_counts, returncode = check_counts(checkstyle_file_path, ' '.join(others), checkstyle_jar, threshold=threshold, only_java=False)
+        if others_counts is None:
+            return (None, returncode)
+        counts.update(others_counts)
+    return (counts, sum([ count['count'] for count in counts.values() ]))
+
+def to_count(result, threshold):
+    errors = sorted(result['errors'], key=lambda error: (int(error['line']), int(error.get('column', 0))))
+    return {
+        'count': min(len(errors), threshold),
+        'first': errors[0] if len(errors) > 0 else None
+    }
+
+def count_file_errors(result):
+    """
+    Number of errors of a file in the results of check or check_counts
+    """
+    if 'count' in result:
+        return result['count']
+    return len(result['errors'])
+
+window_check_stats = { 'stub': 0, 'no_stub': 0, 'ambiguous': 0 }
+
+def check_window(checkstyle_file_path, file_path, from_line, to_line, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=True):
+    """
+    Validation of a file that only changed between from_line and to_line (a local repair), see check_windows
+    :return: same as check for the file
+    """
+    return check_windows(checkstyle_file_path, { file_path: (from_line, to_line) }, checkstyle_jar, only_targeted=only_targeted)
+
+def check_windows(checkstyle_file_path, windows, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=True):
+    """
+    Validation of files that only changed between some lines (local repairs), given as {file: (from_line, to_line)}.
+    Checkstyle audits a stub with the enclosing type and member of each window (see window_stub)
+    instead of the whole file, all the stubs at once. The full files are checked, at once too, when
+    there is no stub or when the result of the stub is ambiguous (errors outside of the member, exceptions).
+    :return: same as check for the files
+    """
+    stubs = {}
+    full = []
+    for file_path, (from_line, to_line) in windows.items():
+        file_path = to_checkstyle_path(file_path)
+        source = open_file(file_path)
+        stub = window_stub.build_stub(source, from_line, to_line)
+        if stub is None:
+            window_check_stats['no_stub'] += 1
+            full.append(file_path)
+        else:
+            stubs[file_path] = (stub, source.count('\n') + 1)
+
+    output = {}
+    stubs_output = check_stubs(checkstyle_file_path, { file_path: stub[0] for file_path, (stub, _) in stubs.items() }, checkstyle_jar, only_targeted)
+    for file_path, ((_, line_map, (first_line, last_line)), number_of_lines) in stubs.items():
+        errors = None
+        if file_path in stubs_output:
+            errors = []
+            for error in stubs_output[file_path]:
+                stub_line = int(error['line'])
+                if stub_line < 1 or is_exception_error(error):
+                    errors = None
+                    break
+                # the lines after the stub (e.g. NewlineAtEndOfFile) are the end of the original file
+                line = line_map[stub_line - 1] if stub_line <= len(line_map) else number_of_lines
+                if not first_line <= line <= last_line:
+                    errors = None
+                    break
+                errors.append(dict(error, line=str(line)))
+        if errors is None:
+            window_check_stats['ambiguous'] += 1
+            full.append(file_path)
+        else:
+            window_check_stats['stub'] += 1
+            output[file_path] = { 'errors': errors }
+
+    returncode = count_errors(output)
+    if len(full) > 0:
+        full_output, full_returncode = check(checkstyle_file_path, ' '.join(full), checkstyle_jar, only_targeted=only_targeted, only_java=True)
+        if full_output is None:
+            return (None, full_returncode)
+        output.update(full_output)
+        returncode += full_returncode
+    return (output, returncode)
+
+def check_stubs(checkstyle_file_path, stubs, checkstyle_jar, only_targeted):
+    """
+    Runs Checkstyle once on the stubs, given as {file_path: stub_source}
+    :return: {file_path: errors of the stub}, without the stubs Checkstyle failed on
+    """
+    if len(stubs) == 0:
+        return {}
+    if is_server_enabled():
+        output, _ = check_sources(checkstyle_file_path, stubs, checkstyle_jar, only_targeted=only_targeted)
+    else:
+        # same file names, some checks depend on them
+        stub_dir = tempfile.mkdtemp()
+        try:
+            stub_paths = {}
+            for index, (file_path, stub_source) in enumerate(stubs.items()):
+                file_dir = os.path.join(stub_dir, str(index))
+                os.makedirs(file_dir)
+                stub_paths[to_checkstyle_path(save_file(file_dir, os.path.basename(file_path), stub_source))] = file_path
+            output, _ = check(checkstyle_file_path, stub_dir, checkstyle_jar, only_targeted=only_targeted)
+            if output is not None:
+                output = { stub_paths[stub_path]:result for stub_path, result in output.items() if stub_path in stub_paths }
+        finally:
+            shutil.rmtree(stub_dir, ignore_errors=True)
+    if output is None:
+        return {}
+    return { file_path:result['errors'] for file_path, result in output.items() if not is_failure_result(result) }
+
+def check_sources(checkstyle_file_path, sources, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=False):
+    """
+    Runs Checkstyle on in-memory sources, given as {virtual_path: source}.
+    The sources go through the Checkstyle server, only NewlineAtEndOfFile gets a temporary copy on the disk.
+    The virtual paths must end with .java to be audited by the TreeWalker.
+    :return: ({virtual_path: {'errors': [...]}}, number of errors), (None, -1) if Checkstyle failed
     """
-    insert_property_haltOnException_set_to_false_in_checkstyle_file(checkstyle_file_path)
+    checkstyle_file_path = compile_config(checkstyle_file_path, get_config_mode(only_targeted))
     checkstyle_jar = os.path.join(_CHECKSTYLE_JARS_DIR, checkstyle_jar)
-    cmd = "java -jar {} -f xml -c {} {} --exclude-regexp .*/test/.* --exclude-regexp .*/resources/.*".format(
-        checkstyle_jar, checkstyle_file_path, file_to_checkstyle_path)
-    process = subprocess.Popen(cmd.split(" "), stdout=subprocess.PIPE)
+    output = {}
+    returncode = 0
+    if is_cache_enabled():
+        cache = get_cache()
+        hashes = { virtual_path:hash_content(source.encode('utf-8')) for virtual_path, source in sources.items() }
+        output, misses = cache.get_hashes(checkstyle_file_path, checkstyle_jar, only_targeted, hashes)
+        returncode = count_errors(output)
+        sources = { virtual_path:sources[virtual_path] for virtual_path in misses }
+    if len(sources) > 0:
+        try:
+            sources_output, sources_returncode = get_server(checkstyle_jar).check(checkstyle_file_path, [], sources=sources)
+        except Exception as err:
+            logger.warning(err)
+            return (None, -1)
+        sources_output = parse_output(sources_output, only_targeted=only_targeted)
+        if sources_output is None:
+            return (None, sources_returncode)
+        if is_cache_enabled():
+            cache.put(checkstyle_file_path, checkstyle_jar, only_targeted, {
+                misses[virtual_path]:result
+                for virtual_path, result in sources_output.items()
+                if virtual_path in misses
+            })
+        output.update(sources_output)
+        returncode += sources_returncode
+    return (output, returncode)
+
+def check_files(checkstyle_file_path, files, checkstyle_jar, only_targeted=False, only_java=False, chunk_size=1000, parallelism=1):
+    """
+    Runs Checkstyle on a list of files, through the server if it is enabled.
+    With parallelism > 1 the files are split in shards checked by concurrent processes
+    """
+    if parallelism > 1 and len(files) > 1:
+        return check_shards(checkstyle_file_path, shard_files(files, parallelism), checkstyle_jar, only_targeted=only_targeted, only_java=only_java, chunk_size=chunk_size)
+    if is_server_enabled():
+        try:
+            output, returncode = get_server(checkstyle_jar).check(checkstyle_file_path, files)
+            output = parse_output(output, only_targeted=only_targeted, only_java=only_java)
+            return (output, returncode)
+        except Exception as err:
+            # the JVM of the server died, the next call starts a new one
+            logger.warning(f'{err}, the files are checked by new processes')
+    return run_checkstyle_on_files(checkstyle_file_path, files, checkstyle_jar, only_targeted=only_targeted, only_java=only_java, chunk_size=chunk_size)
+
+def run_checkstyle_on_files(checkstyle_file_path, files, checkstyle_jar, only_targeted=False, only_java=False, chunk_size=1000):
+    """
+    Runs new Checkstyle processes on a list of files.
+    The files are given as arguments, so the command line is split in chunks
+    """
+    output = {}
+    returncode = 0
+    for chunk_start in range(0, len(files), chunk_size):
+        chunk = files[chunk_start:chunk_start + chunk_size]
+        chunk_output, chunk_returncode = run_checkstyle(checkstyle_file_path, " ".join(chunk), checkstyle_jar, only_targeted=only_targeted, only_java=only_java)
+        if chunk_output is None:
+            return (None, chunk_returncode)
+        output.update(chunk_output)
+        returncode += chunk_returncode
+    return (output, returncode)
+
+def shard_files(files, number_of_shards):
+    """
+    Split the files in shards of balanced total size,
+    the biggest files are assigned first to the lightest shard
+    """
+    shards = [ (0, shard_id, []) for shard_id in range(min(number_of_shards, len(files))) ]
+    for file in sorted(files, key=os.path.getsize, reverse=True):
+        size, shard_id, shard = heapq.heappop(shards)
+        shard.append(file)
+        heapq.heappush(shards, (size + os.path.getsize(file), shard_id, shard))
+    return [ shard for _, _, shard in sorted(shards, key=lambda shard: shard[1]) ]
+
+def check_shards(checkstyle_file_path, shards, checkstyle_jar, only_targeted=False, only_java=False, chunk_size=1000):
+    """
+    Runs one Checkstyle process per shard concurrently and merges the results
+    """
+    def check_shard(shard):
+        return run_checkstyle_on_files(checkstyle_file_path, shard, checkstyle_jar, only_targeted=only_targeted, only_java=only_java, chunk_size=chunk_size)
+
+    with ThreadPoolExecutor(max_workers=len(shards)) as executor:
+        results = list(executor.map(check_shard, shards))
+    output = {}
+    returncode = 0
+    for shard_output, shard_returncode in results:
+        if shard_output is None:
+            return (None, shard_returncode)
+        output.update(shard_output)
+        returncode += shard_returncode
+    return (output, returncode)
+
+def run_checkstyle(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar, only_targeted=False, only_java=False):
+    """
+    Runs a new Checkstyle process.
+    When the process fails during the audit, the results of the files audited before are kept
+    and the other files are checked again apart (see check_isolated)
+    """
+    output, complete, returncode = run_checkstyle_process(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar, only_targeted=only_targeted, only_java=only_java)
+    if output is None or complete:
+        return (output, returncode)
+    logger.debug(f'Checkstyle failed after {len(output)} files, the other files are checked apart')
+    missing = [
+        file
+        for file in list_files(file_to_checkstyle_path)
+        if file not in output and (not only_java or file.endswith('.java'))
+    ]
+    output.update(check_isolated(checkstyle_file_path, missing, checkstyle_jar, only_targeted=only_targeted, only_java=only_java))
+    return (output, count_errors(output))
+
+def run_checkstyle_process(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar, only_targeted=False, only_java=False):
+    """
+    :return: (results of the audited files, True if the audit went to the end, returncode).
+    The results are None when Checkstyle failed before the audit (configuration error)
+    """
+    cmd = "-jar {} -f xml -c {} {} {}".format(
+        checkstyle_jar, checkstyle_file_path, file_to_checkstyle_path, get_exclude_args())
+    process = subprocess.Popen(['java'] + get_java_options(checkstyle_jar) + cmd.split(" "), stdout=subprocess.PIPE)
     output = process.communicate()[0]
-    # deletion of non xml strings
-    if ( process.returncode > 0):
-        output = b''.join(output.split(b'</checkstyle>')[0:-1]) + b'</checkstyle>'
-    # parsing
-    output = parse_output(output, only_targeted=only_targeted, only_java=only_java)
-    return (output, process.returncode)
-
-def insert_property_haltOnException_set_to_false_in_checkstyle_file(checkstyle_file_path):
-    original_checkstyle_file_content = open_file(checkstyle_file_path)
-    
-    clean_checkstyle_file_content = re.sub(r'<property name\s*=\s*"haltOnException"[\s|\n]+value\s*=\s*"true"\s*/>', '', original_checkstyle_file_content, flags=re.DOTALL)
-    
-    if not re.search('<property name\s*=\s*"haltOnException"[\s|\n]+value\s*=\s*"false"\s*/>', clean_checkstyle_file_content):
-        lines = clean_checkstyle_file_content.split('\n')
-        new_checkstyle_file_content = ''
-        for line in lines:
-            new_checkstyle_file_content += line + '\n'
-            if 'module' in line and '"Checker"' in line:
-                new_checkstyle_file_content += '    <property name="haltOnException" value="false"/>' + '\n'
-        save_file_in_path(checkstyle_file_path, new_checkstyle_file_content)
+    if b'<checkstyle' not in output:
+        return (None, False, process.returncode)
+    # the files are parsed until the output stops, the non xml trailing text is ignored
+    complete = b'</checkstyle>' in output
+    output = dict(parse_stream(io.BytesIO(output), only_targeted=only_targeted, only_java=only_java))
+    return (output, complete, process.returncode)
+
+def check_isolated(checkstyle_file_path, files, checkstyle_jar, only_targeted=False, only_java=False):
+    """
+    Checks the files by halves until the files that make Checkstyle fail are alone,
+    these files get a single error with Checker as source (see is_failure_result)
+    """
+    if len(files) == 0:
+        return {}
+    output, complete, _ = run_checkstyle_process(checkstyle_file_path, " ".join(files), checkstyle_jar, only_targeted=only_targeted, only_java=only_java)
+    output = output if output is not None else {}
+    if complete:
+        return output
+    missing = [ file for file in files if file not in output ]
+    if len(files) == 1:
+        return { file:get_failure_result(file) for file in missing }
+    middle = len(missing) // 2
+    for half in (missing[:middle], missing[middle:]):
+        output.update(check_isolated(checkstyle_file_path, half, checkstyle_jar, only_targeted=only_targeted, only_java=only_java))
+    return output
+
+_CHECKER_SOURCE = 'com.puppycrawl.tools.checkstyle.Checker'
+_FAILURE_MESSAGE = 'Checkstyle failed while processing this file'
+
+def get_failure_result(file):
+    return { 'errors': [{
+        'line': '1',
+        'severity': 'error',
+        'message': _FAILURE_MESSAGE,
+        'source': _CHECKER_SOURCE
+    }] }
+
+def is_failure_result(result):
+    """
+    True if the file made the Checkstyle process fail, such results are not cached
+    """
+    return any([ error.get('message') == _FAILURE_MESSAGE for error in result.get('errors', []) ])
+
+def is_exception_error(error):
+    """
+    True for the errors of Checkstyle itself, when a file could not be processed.
+    They are kept by only_targeted, a file that Checkstyle can not parse is not clean
+    """
+    return error.get('source') == _CHECKER_SOURCE
+
+def is_error_kept(error, only_targeted):
+    return not only_targeted or is_error_targeted(error) or is_exception_error(error)
+
+def count_errors(output):
+    return sum([
+        len([ error for error in result['errors'] if error.get('severity') == 'error' ])
+        for result in output.values()
+    ])
+
+def get_exclude_args():
+    return " ".join([ f'--exclude-regexp {regexp}' for regexp in _EXCLUDE_REGEXPS ])
+
+def to_checkstyle_path(path):
+    """
+    Format a path the way Checkstyle (java.io.File) reports it
+    """
+    path = re.sub('/+', '/', path)
+    if len(path) > 1:
+        path = path.rstrip('/')
+    if not path.startswith('/'):
+        path = f'{os.getcwd()}/{path}'
+    return path
+
+def list_files(file_to_checkstyle_path):
+    """
+    List the files Checkstyle would audit for the given path(s),
+    applying the same --exclude-regexp filters as the command line
+    """
+    excludes = [ re.compile(regexp) for regexp in _EXCLUDE_REGEXPS ]
+    def is_excluded(path):
+        return any(exclude.search(path) for exclude in excludes)
+
+    files = []
+    for path in file_to_checkstyle_path.split(" "):
+        if path == '':
+            continue
+        path = to_checkstyle_path(path)
+        if os.path.isfile(path):
+            if not is_excluded(path):
+                files.append(path)
+            continue
+        for root, dirs, file_names in os.walk(path):
+            dirs[:] = [ folder for folder in sorted(dirs) if not is_excluded(f'{root}/{folder}') ]
+            for file_name in sorted(file_names):
+                file_path = f'{root}/{file_name}'
+                if not is_excluded(file_path):
+                    files.append(file_path)
+    return files
+
+def is_server_enabled():
+    return core_config.getboolean('CHECKSTYLE', 'server', fallback=False)
+
+def compile_server(checkstyle_jar):
+    """
+    Compile the server against the jar once, its classes are packaged in jars/server/<jar>-server.jar
+    (AppCDS does not archive the classes of a directory) and compiled again when the source changes
+    :return: the path of the server jar
+    """
+    server_jar = os.path.join(_SERVER_BUILD_DIR, f'{os.path.basename(checkstyle_jar)[:-len(".jar")]}-server.jar')
+    if not os.path.exists(server_jar) or os.path.getmtime(server_jar) < os.path.getmtime(_SERVER_SOURCE):
+        create_dir(_SERVER_BUILD_DIR)
+        class_dir = tempfile.mkdtemp()
+        try:
+            subprocess.check_call(['javac', '-cp', checkstyle_jar, '-d', class_dir, _SERVER_SOURCE])
+            # written under a temporary name so that concurrent runs never read a partial jar
+            tmp_path = f'{server_jar}.{os.getpid()}.tmp'
+            with zipfile.ZipFile(tmp_path, 'w') as jar:
+                for class_file in sorted(os.listdir(class_dir)):
+                    jar.write(os.path.join(class_dir, class_file), class_file)
+            os.replace(tmp_path, server_jar)
+        finally:
+            shutil.rmtree(class_dir, ignore_errors=True)
+    return server_jar
+
+class CheckstyleServer:
+    """
+    A warm JVM running checkstyle_server/CheckstyleServer.java for a given jar.
+    Requests are sent through its stdin, results are read on its stdout.
+    """
+    def __init__(self, checkstyle_jar):
+        self.checkstyle_jar = checkstyle_jar
+        self.lock = threading.Lock()
+        # elapsed nanos and allocated bytes of the last request, measured in the JVM
+        self.last_elapsed = None
+        self.last_allocated = None
+        server_jar = compile_server(checkstyle_jar)
+        cmd = ['java'] + get_java_options(server_jar) + ['-cp', f'{checkstyle_jar}:{server_jar}', 'CheckstyleServer']
+        self.process = subprocess.Popen(cmd, stdin=subprocess.PIPE, stdout=subprocess.PIPE)
+
+    def is_alive(self):
+        return self.process.poll() is None
+
+    def check(self, checkstyle_file_path, files, sources=None, limit=0):
+        """
+        Returns the xml output and the number of errors, like `java -jar`.
+        sources ({virtual_path: source}) are sent through the pipe and checked in memory.
+        With a limit, the audit of a file stops once it has limit errors.
+        Raises an exception when the audit failed (configuration error, exception of the Checker)
+        """
+        request = [f'CHECK {to_checkstyle_path(checkstyle_file_path)}']
+        request += [ f'FILE {file}' for file in files ]
+        if sources is not None:
+            for virtual_path, source in sources.items():
+                # the length is given in UTF-16 code units, like a java String
+                request += [ f'SOURCE {len(source.encode("utf-16-le")) // 2} {virtual_path}', source ]
+        if limit > 0:
+            request += [f'LIMIT {limit}']
+        request += ['END']
+        with self.lock:
+            self.process.stdin.write(('\n'.join(request) + '\n').encode('utf-8'))
+            self.process.stdin.flush()
+            output = []
+            line = self.process.stdout.readline()
+            while line and not line.startswith(b'END'):
+                output.append(line)
+                line = self.process.stdout.readline()
+        if not line:
+            raise Exception(f'The Checkstyle server of {self.checkstyle_jar} stopped')
+        end = line.split()
+        if len(end) >= 4:
+            self.last_elapsed, self.last_allocated = int(end[2]), int(end[3])
+        errors = int(end[1])
+        # the server reports an empty audit and a negative count when the audit failed
+        if errors < 0 or not any([ line.startswith(b'<checkstyle') for line in output ]):
+            raise Exception(f'The Checkstyle server of {self.checkstyle_jar} failed to check with {checkstyle_file_path}')
+        return b''.join(output), errors
+
+    def close(self):
+        try:
+            self.process.stdin.close()
+            self.process.wait(timeout=10)
+        except Exception:
+            self.process.kill()
+
+_servers = OrderedDict()
+_servers_pid = os.getpid()
+_servers_lock = threading.Lock()
+
+def get_server(checkstyle_jar):
+    """
+    Get the server of the jar, the least recently used one is stopped
+    when more than `server_pool_size` jars are in use
+    """
+    global _servers_pid
+    with _servers_lock:
+        if _servers_pid != os.getpid():
+            # forked process, the pipes belong to the parent
+            _servers.clear()
+            _servers_pid = os.getpid()
+        server = _servers.pop(checkstyle_jar, None)
+        if server is None or not server.is_alive():
+            server = CheckstyleServer(checkstyle_jar)
+        _servers[checkstyle_jar] = server
+        pool_size = core_config.getint('CHECKSTYLE', 'server_pool_size', fallback=2)
+        while len(_servers) > pool_size:
+            _, evicted = _servers.popitem(last=False)
+            evicted.close()
+    return server
+
+@atexit.register
+def stop_servers():
+    if _servers_pid == os.getpid():
+        for server in _servers.values():
+            server.close()
+        _servers.clear()
+
+def get_compiled_configs_dir():
+    return create_dir(os.path.join(get_output_dir(), 'checkstyle_configs'))
+
+def is_module_kept(module_name):
+    """
+    A module is kept in a targeted config if it is a targeted check or if it
+    changes which errors are reported (root modules, filters, holders)
+    """
+    module_type = checkstyle_source_to_error_type(module_name)
+    return module_type in ('Checker', 'TreeWalker') \
+        or module_type in targeted_errors \
+        or 'Filter' in module_type \
+        or 'Holder' in module_type
+
+def normalize_config(root, mode):
+    """
+    Set haltOnException to false and, in 'targeted' mode, remove the modules
+    that are not targeted. The root element is modified in place.
+    """
+    for property in root.findall('property'):
+        if property.attrib.get('name') == 'haltOnException':
+            root.remove(property)
+    halt_on_exception = ET.Element('property', { 'name': 'haltOnException', 'value': 'false' })
+    root.insert(0, halt_on_exception)
+    if mode == 'targeted':
+        def remove_untargeted(module):
+            for child in list(module.findall('module')):
+                if is_module_kept(child.attrib.get('name', '')):
+                    remove_untargeted(child)
+                else:
+                    module.remove(child)
+        remove_untargeted(root)
+    return root
+
+def compile_config(checkstyle_file_path, mode='full'):
+    """
+    Compile the checkstyle.xml into a normalized config that is cached by content hash.
+    The mode is 'targeted' (only the targeted modules, used for generation and validation)
+    or 'full' (every module, used for reporting). The source file is never modified.
+    :return: the path of the compiled config
+    """
+    with open(checkstyle_file_path, 'rb') as f:
+        content = f.read()
+    compiled_path = os.path.join(get_compiled_configs_dir(), f'{hash_content(content)}-{mode}.xml')
+    if os.path.exists(compiled_path):
+        return compiled_path
+
+    text = content.decode('utf-8')
+    doctype = re.search(r'<!DOCTYPE[^\[>]*(\[.*?\])?\s*>', text, flags=re.DOTALL)
+    root = normalize_config(ET.fromstring(content), mode)
+    compiled = '<?xml version="1.0" encoding="UTF-8"?>\n'
+    if doctype:
+        compiled += doctype.group(0) + '\n'
+    compiled += ET.tostring(root, encoding='unicode') + '\n'
+
+    # written under a temporary name so that concurrent runs never read a partial config
+    tmp_path = f'{compiled_path}.{os.getpid()}.tmp'
+    save_file_in_path(tmp_path, compiled)
+    os.replace(tmp_path, compiled_path)
+    return compiled_path
+
+def get_config_fingerprint(checkstyle_file_path, checkstyle_jar=None):
+    """
+    Fingerprint of the targeted part of a checkstyle.xml and of the Checkstyle jar.
+    Whitespace, comments, the order of the modules and of the properties, the name form
+    of the modules (ParenPad or ...whitespace.ParenPadCheck) and the modules that are not
+    targeted are ignored, so equivalent configs of different projects get the same fingerprint.
+    The versions of Checkstyle have different defaults, the configs of two jars never match
+    """
+    root = normalize_config(ET.parse(checkstyle_file_path).getroot(), 'targeted')
+
+    def canonical(module):
+        properties = sorted([
+            (property.attrib.get('name', ''), property.attrib.get('value', '').strip())
+            for property in module.findall('property')
+        ])
+        children = sorted([ canonical(child) for child in module.findall('module') ])
+        return [checkstyle_source_to_error_type(module.attrib.get('name', '')), properties, children]
+
+    jar = os.path.basename(checkstyle_jar) if checkstyle_jar else None
+    return hash_content(json.dumps([jar, canonical(root)]).encode('utf-8'))[:16]
+
+def get_config_mode(only_targeted):
+    return 'targeted' if only_targeted else 'full'
+
+def is_cache_enabled():
+    return core_config.getboolean('CHECKSTYLE', 'cache', fallback=False)
+
+def hash_content(content):
+    return hashlib.sha1(content).hexdigest()
+
+def hash_file(file_path):
+    with open(file_path, 'rb') as f:
+        return hash_content(f.read())
+
+# modules whose results depend on the path of the file and not only on its content
+_PATH_DEPENDENT_MODULES = (
+    'SuppressionFilter',
+    'SuppressionXpathFilter',
+    'SuppressionSingleFilter',
+    'BeforeExecutionExclusionFileFilter',
+    'OuterTypeFilename',
+    'PackageDeclaration',
+    'JavadocPackage',
+    'Translation'
+)
+
+_path_dependent_configs = {}
+
+def is_path_dependent_config(checkstyle_file_path):
+    """
+    True if the config has a path dependent module, file extensions or properties (${basedir}, ...)
+    """
+    if checkstyle_file_path not in _path_dependent_configs:
+        path_dependent = False
+        for module in ET.parse(checkstyle_file_path).getroot().iter('module'):
+            path_dependent = path_dependent or checkstyle_source_to_error_type(module.attrib.get('name', '')) in _PATH_DEPENDENT_MODULES
+            for property in module.findall('property'):
+                path_dependent = path_dependent or property.attrib.get('name') == 'fileExtensions' or '${' in property.attrib.get('value', '')
+        _path_dependent_configs[checkstyle_file_path] = path_dependent
+    return _path_dependent_configs[checkstyle_file_path]
+
+class CheckstyleCache:
+    """
+    Persistent cache of the Checkstyle results of single files.
+    The results are keyed by the content of the checkstyle.xml, the jar,
+    the content of the file and only_targeted. The path of the file is
+    part of the key only for the path dependent configs (see is_path_dependent_config).
+    """
+    def __init__(self, path):
+        self.path = path
+        self.lock = threading.Lock()
+        self.connection = sqlite3.connect(path, timeout=60, check_same_thread=False)
+        self.connection.execute('PRAGMA journal_mode=WAL')
+        self.connection.execute('''
+            CREATE TABLE IF NOT EXISTS checkstyle_results (
+                config_hash TEXT,
+                jar TEXT,
+                file_hash TEXT,
+                only_targeted INTEGER,
+                errors TEXT,
+                PRIMARY KEY (config_hash, jar, file_hash, only_targeted)
+            )
+        ''')
+        self.connection.commit()
+
+    def get(self, checkstyle_file_path, checkstyle_jar, only_targeted, files):
+        """
+        Returns the cached results by file and the file hashes of the misses
+        """
+        return self.get_hashes(checkstyle_file_path, checkstyle_jar, only_targeted, {
+            file:hash_file(file)
+            for file in files
+        })
+
+    def get_hashes(self, checkstyle_file_path, checkstyle_jar, only_targeted, hashes):
+        """
+        Same as get, with the content hashes given as {name: hash}
+        """
+        if is_path_dependent_config(checkstyle_file_path):
+            hashes = { file:hash_content(f'{file}:{file_hash}'.encode('utf-8')) for file, file_hash in hashes.items() }
+        config_hash = hash_file(checkstyle_file_path)
+        jar = os.path.basename(checkstyle_jar)
+        results = {}
+        misses = {}
+        with self.lock:
+            for file, file_hash in hashes.items():
+                row = self.connection.execute(
+                    'SELECT errors FROM checkstyle_results WHERE config_hash=? AND jar=? AND file_hash=? AND only_targeted=?',
+                    (config_hash, jar, file_hash, int(only_targeted))
+                ).fetchone()
+                if row is None:
+                    misses[file] = file_hash
+                else:
+                    results[file] = { 'errors': json.loads(row[0]) }
+        return results, misses
+
+    def put(self, checkstyle_file_path, checkstyle_jar, only_targeted, results_by_hash):
+        config_hash = hash_file(checkstyle_file_path)
+        jar = os.path.basename(checkstyle_jar)
+        with self.lock:
+            self.connection.executemany(
+                'INSERT OR REPLACE INTO checkstyle_results VALUES (?, ?, ?, ?, ?)',
+                [
+                    (config_hash, jar, file_hash, int(only_targeted), json.dumps(result['errors']))
+                    for file_hash, result in results_by_hash.items()
+                ]
+            )
+            self.connection.commit()
+
+_cache = None
+_cache_pid = None
+
+def get_cache():
+    global _cache, _cache_pid
+    if _cache is None or _cache_pid != os.getpid():
+        _cache = CheckstyleCache(os.path.join(create_dir(get_output_dir()), 'checkstyle_cache.sqlite'))
+        _cache_pid = os.getpid()
+    return _cache
 
 def parse_output(output, only_targeted=False, only_java=False):
     """
@@ -98,23 +869,76 @@ def parse_output(output, only_targeted=False, only_java=False):
                 output_parsed[elem_file.attrib['name']]['errors'] = list()
                 for elem_error in elem_file.getchildren():
                     if ( elem_error.tag == 'error' ):
-                        if only_targeted:
-                            if is_error_targeted(elem_error.attrib):
-                                output_parsed[elem_file.attrib['name']]['errors'].append(elem_error.attrib)
-                        else:
+                        if is_error_kept(elem_error.attrib, only_targeted):
                             output_parsed[elem_file.attrib['name']]['errors'].append(elem_error.attrib)
     except Exception as err:
         print(err)
         return None
     return output_parsed
 
+def parse_stream(stream, only_targeted=False, only_java=False):
+    """
+    Parses the XML results incrementally from a binary stream.
+    Yields (file, {'errors': [...]}) each time a <file> element is closed.
+    Stops at the first parse error (truncated output, non xml trailing text)
+    """
+    root = None
+    try:
+        for event, elem in ET.iterparse(stream, events=('start', 'end')):
+            if event == 'start':
+                if root is None:
+                    root = elem
+                continue
+            if elem.tag != 'file':
+                continue
+            file_name = elem.attrib['name']
+            if not only_java or file_name.endswith('.java'):
+                errors = [
+                    dict(elem_error.attrib)
+                    for elem_error in elem
+                    if elem_error.tag == 'error' and is_error_kept(elem_error.attrib, only_targeted)
+                ]
+                yield (file_name, { 'errors': errors })
+            # the processed elements are dropped to keep the memory bounded
+            elem.clear()
+            root.clear()
+    except ET.ParseError as err:
+        logger.debug(f'Checkstyle output stopped: {err}')
+
+def check_iter(checkstyle_file_path, file_to_checkstyle_path, checkstyle_jar=_CHECKSTYLE_JAR, only_targeted=False, only_java=False):
+    """
+    Streaming version of check: runs Checkstyle on the file_to_checkstyle_path
+    and yields (file, {'errors': [...]}) as soon as each file is audited
+    """
+    checkstyle_file_path = compile_config(checkstyle_file_path, get_config_mode(only_targeted))
+    checkstyle_jar = os.path.join(_CHECKSTYLE_JARS_DIR, checkstyle_jar)
+    cmd = "-jar {} -f xml -c {} {} {}".format(
+        checkstyle_jar, checkstyle_file_path, file_to_checkstyle_path, get_exclude_args())
+    process = subprocess.Popen(['java'] + get_java_options(checkstyle_jar) + cmd.split(" "), stdout=subprocess.PIPE)
+    try:
+        yield from parse_stream(process.stdout, only_targeted=only_targeted, only_java=only_java)
+    finally:
+        process.stdout.close()
+        process.wait()
+
 def parse_file(file_path, only_targeted=False):
     with open(file_path) as f:
         file_content = f.read()
     return parse_output(file_content, only_targeted=only_targeted)
 
 if __name__ == "__main__":
-    if sys.argv[1] == "cs":
+    if sys.argv[1] == "fingerprints":
+        # groups the projects that have equivalent configs
+        projects = sys.argv[2:] if len(sys.argv) > 2 else list_folders(get_output_dir())
+        fingerprints = {}
+        for project_name in projects:
+            checkstyle_file_path = os.path.join(get_real_dataset_dir(project_name), 'checkstyle.xml')
+            if os.path.exists(checkstyle_file_path):
+                checkstyle_jar = open_json(os.path.join(get_real_dataset_dir(project_name), 'info.json'))['checkstyle_jar']
+                fingerprints.setdefault(get_config_fingerprint(checkstyle_file_path, checkstyle_jar), []).append(project_name)
+        json_pp(fingerprints)
+        print(f'{len(fingerprints)} fingerprints for {sum([ len(names) for names in fingerprints.values() ])} projects')
+    elif sys.argv[1] == "cs":
         checkstyle_path = "./test_corpora/commons-lang/checkstyle.xml"
         file_path = "./ugly/java-design-patterns/Target.java ./ugly/java-design-patterns/Client.java"
         if ( len(sys.argv) >= 4):
@@ -123,6 +947,9 @@ if __name__ == "__main__":
 
         (output_raw, errorcode) = check(checkstyle_path, file_path)
         print(output_raw, errorcode)
+    elif sys.argv[1] == "stream":
+        for file_name, content in check_iter(sys.argv[2], sys.argv[3], only_targeted=True, only_java=True):
+            print(file_name, len(content['errors']))
     elif sys.argv[1] == "check":
         out, n = check(sys.argv[2], sys.argv[3], only_targeted=True, only_java=True)
         json_pp(out)
@@ -0,0 +1,437 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.puppycrawl.tools.checkstyle.Checker;
+import com.puppycrawl.tools.checkstyle.ConfigurationLoader;
+import com.puppycrawl.tools.checkstyle.PropertiesExpander;
+import com.puppycrawl.tools.checkstyle.api.AuditEvent;
+import com.puppycrawl.tools.checkstyle.api.AuditListener;
+import com.puppycrawl.tools.checkstyle.api.Configuration;
+import com.puppycrawl.tools.checkstyle.api.FileSetCheck;
+import com.puppycrawl.tools.checkstyle.api.FileText;
+import com.puppycrawl.tools.checkstyle.api.LocalizedMessage;
+import com.puppycrawl.tools.checkstyle.api.SeverityLevel;
+import com.puppycrawl.tools.checkstyle.checks.NewlineAtEndOfFileCheck;
+
+/**
+ * Long-lived Checkstyle process used by checkstyle.py.
+ *
+ * Reads requests on stdin:
+ *   CHECK <checkstyle.xml path>
+ *   FILE <path>            (any number)
+ *   SOURCE <length> <path> (any number, followed by <length> UTF-16 chars of source)
+ *   LIMIT <n>              (optional, stops auditing a file once it has n errors)
+ *   END
+ * and answers each one with the same XML document as `-f xml`
+ * followed by a line `END <number of errors> <elapsed nanos> <allocated bytes>`.
+ * Sources are audited in memory and reported under their (virtual) path.
+ */
+public class CheckstyleServer {
+
+    public static void main(String[] args) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!line.startsWith("CHECK ")) {
+                continue;
+            }
+            String config = line.substring("CHECK ".length());
+            List<File> files = new ArrayList<>();
+            Map<String, String> sources = new LinkedHashMap<>();
+            int limit = 0;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                if (line.startsWith("FILE ")) {
+                    files.add(new File(line.substring("FILE ".length())));
+                }
+                else if (line.startsWith("SOURCE ")) {
+                    String[] header = line.split(" ", 3);
+                    char[] source = new char[Integer.parseInt(header[1])];
+                    int read = 0;
+                    while (read < source.length) {
+                        int count = in.read(source, read, source.length - read);
+                        if (count < 0) {
+                            throw new IOException("Unexpected end of the source " + header[2]);
+                        }
+                        read += count;
+                    }
+                    sources.put(header[2], new String(source));
+                }
+                else if (line.startsWith("LIMIT ")) {
+                    limit = Integer.parseInt(line.substring("LIMIT ".length()));
+                }
+            }
+            long allocated = getAllocatedBytes();
+            long start = System.nanoTime();
+            int errors = sources.isEmpty() && limit == 0
+                ? check(config, files, out) : checkTexts(config, files, sources, limit, out);
+            long elapsed = System.nanoTime() - start;
+            allocated = getAllocatedBytes() - allocated;
+            out.println("END " + errors + " " + elapsed + " " + allocated);
+            out.flush();
+        }
+    }
+
+    /**
+     * Bytes allocated by the current thread, -1 when the JVM does not support it.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        catch (ClassCastException | UnsupportedOperationException ex) {
+            return -1;
+        }
+    }
+
+    private static int check(String config, List<File> files, PrintWriter out) {
+        XmlListener listener = new XmlListener(out);
+        Checker checker = new Checker();
+        try {
+            Configuration configuration = ConfigurationLoader.loadConfiguration(
+                config, new PropertiesExpander(System.getProperties()));
+            checker.setModuleClassLoader(Checker.class.getClassLoader());
+            checker.configure(configuration);
+            checker.addListener(listener);
+            return checker.process(files);
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+            listener.close();
+            return -1;
+        }
+        finally {
+            checker.destroy();
+        }
+    }
+
+    /**
+     * Runs the file set checks of the configuration file by file, on files and on in-memory sources.
+     * NewlineAtEndOfFile reads the file from the disk, so it gets temporary copies of the sources,
+     * written once per request.
+     * With a limit, the remaining file set checks of a file are skipped once it has limit errors
+     * and at most limit errors are reported for it.
+     * The file set checks are private fields of Checker, when this version of Checker does not have
+     * the expected ones the sources are copied on the disk and audited by Checker.process.
+     */
+    @SuppressWarnings("unchecked")
+    private static int checkTexts(String config, List<File> files, Map<String, String> sources, int limit,
+                                  PrintWriter out) {
+        XmlListener listener = new XmlListener(out, limit);
+        Checker checker = new Checker();
+        Path directory = null;
+        try {
+            Configuration configuration = ConfigurationLoader.loadConfiguration(
+                config, new PropertiesExpander(System.getProperties()));
+            checker.setModuleClassLoader(Checker.class.getClassLoader());
+            checker.configure(configuration);
+            checker.addListener(listener);
+            List<FileSetCheck> fileSetChecks;
+            String charset;
+            String[] fileExtensions;
+            Method acceptFileStarted;
+            try {
+                fileSetChecks = (List<FileSetCheck>) getField(checker, "fileSetChecks");
+                charset = (String) getField(checker, "charset");
+                fileExtensions = (String[]) getField(checker, "fileExtensions");
+                // the before execution file filters, on the path relative to the basedir
+                acceptFileStarted = Checker.class.getDeclaredMethod("acceptFileStarted", String.class);
+                acceptFileStarted.setAccessible(true);
+            }
+            catch (ReflectiveOperationException | RuntimeException ex) {
+                System.err.println("Unexpected Checker internals, the sources are checked from the disk: " + ex);
+                return checkCopies(checker, listener, files, sources, getCharset(configuration));
+            }
+            Map<String, File> copies = new HashMap<>();
+            if (!sources.isEmpty() && fileSetChecks.stream().anyMatch(check -> check instanceof NewlineAtEndOfFileCheck)) {
+                directory = Files.createTempDirectory("checkstyle-server");
+                copies = writeCopies(directory, sources, charset);
+            }
+            listener.auditStarted(null);
+            for (FileSetCheck fileSetCheck : fileSetChecks) {
+                fileSetCheck.beginProcessing(charset);
+            }
+            for (File file : files) {
+                String fileName = file.getAbsolutePath();
+                if (!isAccepted(checker, acceptFileStarted, fileExtensions, file, fileName)) {
+                    continue;
+                }
+                checker.fireFileStarted(fileName);
+                try {
+                    processText(checker, listener, fileSetChecks, fileName, file, new FileText(file, charset), null, limit);
+                }
+                catch (IOException ex) {
+                    listener.addError(1, 0, SeverityLevel.ERROR,
+                        "Exception was thrown while processing " + fileName + ": " + ex, Checker.class.getName());
+                }
+                checker.fireFileFinished(fileName);
+            }
+            for (Map.Entry<String, String> source : sources.entrySet()) {
+                String fileName = source.getKey();
+                File file = new File(fileName);
+                if (!isAccepted(checker, acceptFileStarted, fileExtensions, file, fileName)) {
+                    continue;
+                }
+                checker.fireFileStarted(fileName);
+                processText(checker, listener, fileSetChecks, fileName, file, new FileText(file, readLines(source.getValue())),
+                    copies.get(fileName), limit);
+                checker.fireFileFinished(fileName);
+            }
+            for (FileSetCheck fileSetCheck : fileSetChecks) {
+                fileSetCheck.finishProcessing();
+            }
+            listener.close();
+            return listener.errors;
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+            listener.close();
+            return -1;
+        }
+        finally {
+            checker.destroy();
+            if (directory != null) {
+                deleteDirectory(directory);
+            }
+        }
+    }
+
+    /**
+     * Checker.process on the files and on copies of the sources, the copies are reported under the path of their source.
+     */
+    private static int checkCopies(Checker checker, XmlListener listener, List<File> files, Map<String, String> sources,
+                                   String charset) throws Exception {
+        Path directory = Files.createTempDirectory("checkstyle-server");
+        try {
+            List<File> copies = new ArrayList<>(files);
+            for (Map.Entry<String, File> copy : writeCopies(directory, sources, charset).entrySet()) {
+                copies.add(copy.getValue());
+                listener.fileNames.put(copy.getValue().getAbsolutePath(), copy.getKey());
+            }
+            int errors = checker.process(copies);
+            listener.close();
+            return errors;
+        }
+        finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Writes the sources in the directory, a sub directory by source so that the copies keep the file names
+     * of their sources (file extensions, checks on the file name).
+     * @return the copy of each source
+     */
+    private static Map<String, File> writeCopies(Path directory, Map<String, String> sources, String charset)
+            throws IOException {
+        Map<String, File> copies = new HashMap<>();
+        int index = 0;
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            Path path = Files.createDirectory(directory.resolve(String.valueOf(index++)))
+                .resolve(new File(source.getKey()).getName());
+            Files.write(path, source.getValue().getBytes(charset));
+            copies.put(source.getKey(), path.toFile());
+        }
+        return copies;
+    }
+
+    private static Object getField(Checker checker, String name) throws ReflectiveOperationException {
+        Field field = Checker.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(checker);
+    }
+
+    private static String getCharset(Configuration configuration) throws Exception {
+        if (Arrays.asList(configuration.getAttributeNames()).contains("charset")) {
+            return configuration.getAttribute("charset");
+        }
+        return System.getProperty("file.encoding", StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Same filtering as Checker.process: the fileExtensions of the Checker, then its before execution file filters.
+     */
+    private static boolean isAccepted(Checker checker, Method acceptFileStarted, String[] fileExtensions, File file,
+                                      String fileName) throws ReflectiveOperationException {
+        if (fileExtensions != null && fileExtensions.length > 0
+                && Arrays.stream(fileExtensions).noneMatch(extension -> file.getName().endsWith(extension))) {
+            return false;
+        }
+        return (Boolean) acceptFileStarted.invoke(checker, fileName);
+    }
+
+    /**
+     * Runs the file set checks on one file, copy is the copy of a source on the disk and null for a file.
+     */
+    private static void processText(Checker checker, XmlListener listener, List<FileSetCheck> fileSetChecks,
+                                    String fileName, File file, FileText fileText, File copy, int limit) {
+        for (FileSetCheck fileSetCheck : fileSetChecks) {
+            if (limit > 0 && listener.fileErrors >= limit) {
+                break;
+            }
+            SortedSet<LocalizedMessage> messages = new TreeSet<>();
+            try {
+                // the check reads the last bytes of the file, its configuration applies as for a file
+                File checkedFile = copy != null && fileSetCheck instanceof NewlineAtEndOfFileCheck ? copy : file;
+                messages.addAll(fileSetCheck.process(checkedFile, fileText));
+            }
+            catch (Exception ex) {
+                listener.addError(1, 0, SeverityLevel.ERROR,
+                    "Exception was thrown while processing " + fileName + ": " + ex, Checker.class.getName());
+            }
+            // fired check by check so that the filters are applied before counting
+            checker.fireErrors(fileName, messages);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) {
+        try {
+            Files.walk(directory).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static List<String> readLines(String source) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(source));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Minimal equivalent of XMLLogger that does not close the stream and
+     * does not depend on the constructor signature of a given version.
+     */
+    private static class XmlListener implements AuditListener {
+        private final PrintWriter out;
+        private boolean started = false;
+        private boolean closed = false;
+        private int errors = 0;
+        private int fileErrors = 0;
+        private final int limit;
+        // the file names reported under another name (copies of the sources)
+        private final Map<String, String> fileNames = new HashMap<>();
+
+        XmlListener(PrintWriter out) {
+            this(out, 0);
+        }
+
+        XmlListener(PrintWriter out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public void auditStarted(AuditEvent event) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<checkstyle>");
+            started = true;
+        }
+
+        @Override
+        public void auditFinished(AuditEvent event) {
+            close();
+        }
+
+        void close() {
+            if (!started) {
+                auditStarted(null);
+            }
+            if (!closed) {
+                out.println("</checkstyle>");
+                closed = true;
+            }
+        }
+
+        @Override
+        public void fileStarted(AuditEvent event) {
+            fileErrors = 0;
+            out.println("<file name=\"" + escape(fileNames.getOrDefault(event.getFileName(), event.getFileName())) + "\">");
+        }
+
+        @Override
+        public void fileFinished(AuditEvent event) {
+            out.println("</file>");
+        }
+
+        @Override
+        public void addError(AuditEvent event) {
+            // like XMLLogger, the module id replaces the source when it is set
+            String source = event.getModuleId() == null ? event.getSourceName() : event.getModuleId();
+            addError(event.getLine(), event.getColumn(), event.getSeverityLevel(), event.getMessage(), source);
+        }
+
+        void addError(int line, int column, SeverityLevel severity, String message, String source) {
+            if (severity == SeverityLevel.IGNORE || (limit > 0 && fileErrors >= limit)) {
+                return;
+            }
+            fileErrors++;
+            if (severity == SeverityLevel.ERROR) {
+                errors++;
+            }
+            StringBuilder error = new StringBuilder("<error line=\"").append(line).append('"');
+            if (column > 0) {
+                error.append(" column=\"").append(column).append('"');
+            }
+            error.append(" severity=\"").append(escape(severity.getName())).append('"')
+                .append(" message=\"").append(escape(message)).append('"')
+                .append(" source=\"").append(escape(source)).append("\"/>");
+            out.println(error);
+        }
+
+        @Override
+        public void addException(AuditEvent event, Throwable throwable) {
+            out.println("<exception message=\"" + escape(String.valueOf(throwable)) + "\"/>");
+        }
+
+        private static String escape(String value) {
+            StringBuilder result = new StringBuilder(value.length());
+            for (char c : value.toCharArray()) {
+                switch (c) {
+                    case '<': result.append("&lt;"); break;
+                    case '>': result.append("&gt;"); break;
+                    case '&': result.append("&amp;"); break;
+                    case '"': result.append("&quot;"); break;
+                    case '\'': result.append("&apos;"); break;
+                    case '\n': result.append("&#10;"); break;
+                    case '\r': result.append("&#13;"); break;
+                    case '\t': result.append("&#9;"); break;
+                    default:
+                        if (c < 0x20) {
+                            result.append("&#").append((int) c).append(';');
+                        }
+                        else {
+                            result.append(c);
+                        }
+                }
+            }
+            return result.toString();
+        }
+    }
+}
@@ -93,23 +93,40 @@ def get_tmp_dir(dataset):
 def get_tmp_batches_dir(dataset):
     return f'{get_project_dir(dataset)}/{__tmp_batches_dir}'
 
+def is_artifact_sharing_enabled():
+    return core_config.getboolean('DEFAULT', 'share_artifacts_by_config', fallback=False)
+
+def get_artifacts_dir(project_name):
+    """Dir of the synthetic data, tokenized data and models of a project.
+    With share_artifacts_by_config, the projects with equivalent checkstyle.xml
+    and the same Checkstyle jar (same fingerprint) share the same dir
+    """
+    if is_artifact_sharing_enabled():
+        checkstyle_file_path = os.path.join(get_real_dataset_dir(project_name), 'checkstyle.xml')
+        info_path = os.path.join(get_real_dataset_dir(project_name), 'info.json')
+        if os.path.exists(checkstyle_file_path) and os.path.exists(info_path):
+            import checkstyle
+            fingerprint = checkstyle.get_config_fingerprint(checkstyle_file_path, open_json(info_path)['checkstyle_jar'])
+            return f'{get_output_dir()}/shared/{fingerprint}'
+    return get_project_dir(project_name)
+
 def get_synthetic_dataset_dir(dataset):
-    return f'{get_project_dir(dataset)}/{__synthetic_dir}'
+    return f'{get_artifacts_dir(dataset)}/{__synthetic_dir}'
 
 def get_synthetic_dataset_dir_by_protocol(dataset, protocol):
-    return f'{get_project_dir(dataset)}/{__synthetic_dir}/{protocol}'
+    return f'{get_artifacts_dir(dataset)}/{__synthetic_dir}/{protocol}'
 
 def get_tokenized_dir(dataset):
-    return f'{get_project_dir(dataset)}/{__tokenized_dir}'
+    return f'{get_artifacts_dir(dataset)}/{__tokenized_dir}'
 
 def get_tokenized_dir_by_protocol(dataset, protocol):
-    return f'{get_project_dir(dataset)}/{__tokenized_dir}/{protocol}'
+    return f'{get_artifacts_dir(dataset)}/{__tokenized_dir}/{protocol}'
 
 def get_preprocessed_dir_by_protocol(dataset, protocol):
-    return f'{get_project_dir(dataset)}/03_preprocessed_error_dataset/{protocol}'
+    return f'{get_artifacts_dir(dataset)}/03_preprocessed_error_dataset/{protocol}'
 
 def get_model_dir(project_name):
-    return os.path.join(get_project_dir(project_name), __models_dir)
+    return os.path.join(get_artifacts_dir(project_name), __models_dir)
 
 def get_model(name, protocol):
     if protocol == 'random':
@@ -118,7 +135,7 @@ def get_model(name, protocol):
         model_path = 'three_grams-general-1-512-256-model_step_20000.pt'
     if 'MODEL_PATH' in os.environ:
         model_path = os.environ['MODEL_PATH']
-    return os.path.join(get_project_dir(name), __models_dir, model_path)
+    return os.path.join(get_model_dir(name), model_path)
 
 def get_real_dataset_dir(name):
     return os.path.join(get_project_dir(name), __real_dataset_dir)
@@ -213,11 +230,31 @@ def create_dir(dir):
     return dir
 
 
+def get_cds_archive(path):
+    """Path of the AppCDS archive of a jar, created by appcds.py.
+    Only the .jar suffix is removed, the versions (checkstyle-8.10.1-all) contain dots
+    """
+    path = path.rstrip('/')
+    if path.endswith('.jar'):
+        path = path[:-len('.jar')]
+    return f'{path}.jsa'
+
+
+def get_java_options(path):
+    """JVM options to use the AppCDS archive of the jar when it exists.
+    The warnings of the JVM (a stale archive...) go to stderr instead of stdout, where they would mix with the output
+    """
+    archive = get_cds_archive(path)
+    if os.path.exists(archive):
+        return [f'-XX:SharedArchiveFile={archive}', '-Xlog:disable', '-Xlog:all=warning:stderr']
+    return []
+
+
 def call_java(jar, args):
     """Call java
     """
-    cmd = "java -jar {} {}".format(jar, " ".join(args))
-    process = subprocess.Popen(cmd.split(" "), stdout=subprocess.PIPE)
+    cmd = ['java'] + get_java_options(jar) + "-jar {} {}".format(jar, " ".join(args)).split(" ")
+    process = subprocess.Popen(cmd, stdout=subprocess.PIPE)
     output = process.communicate()[0]
     return output
 
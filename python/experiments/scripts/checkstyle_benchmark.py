@@ -0,0 +1,219 @@
+"""
+Benchmark of Checkstyle per jar, config and module.
+The checks run in the warm JVM of checkstyle_server, the time and the allocated bytes
+are measured inside the JVM, around Checker, so the pipe and the python side are excluded.
+
+python checkstyle_benchmark.py configs [projects...]
+python checkstyle_benchmark.py modules <project>
+python checkstyle_benchmark.py window [files]
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+import checkstyle
+
+import copy
+import time
+import random
+import xml.etree.ElementTree as ET
+
+# upper bounds (bytes) of the size strata of the sample
+_SIZE_STRATA = (2000, 8000, 32000, float('inf'))
+
+def get_benchmark_dir():
+    return create_dir(os.path.join(get_output_dir(), 'checkstyle_benchmark'))
+
+def list_projects():
+    return [
+        project_name
+        for project_name in list_folders(get_output_dir())
+        if os.path.exists(os.path.join(get_real_dataset_dir(project_name), 'info.json'))
+    ]
+
+def get_dataset_files(project_name=None):
+    projects = [project_name] if project_name else list_projects()
+    files = []
+    for name in projects:
+        files += glob.glob(os.path.join(get_real_dataset_dir(name), '*', '*', '*.java'))
+    return sorted(files)
+
+def sample_files(files, per_stratum, seed=0):
+    """
+    Same number of files from each size stratum
+    """
+    strata = [ [] for _ in _SIZE_STRATA ]
+    for file_path in files:
+        size = os.path.getsize(file_path)
+        stratum = next(index for index, bound in enumerate(_SIZE_STRATA) if size < bound)
+        strata[stratum].append(file_path)
+    generator = random.Random(seed)
+    return [
+        file_path
+        for stratum in strata
+        for file_path in generator.sample(stratum, min(per_stratum, len(stratum)))
+    ]
+
+def measure(server, checkstyle_file_path, files, warmup, iterations):
+    """
+    Run the check warmup + iterations times on the files
+    :return: the measures of the iterations
+    """
+    runs = []
+    for iteration in range(warmup + iterations):
+        _, errors = server.check(checkstyle_file_path, files)
+        if iteration >= warmup:
+            runs.append((server.last_elapsed, server.last_allocated, errors))
+    elapsed = sorted([ run[0] for run in runs ])[len(runs) // 2]
+    allocated = sorted([ run[1] for run in runs ])[len(runs) // 2]
+    size = sum([ os.path.getsize(file_path) for file_path in files ])
+    return {
+        'files': len(files),
+        'bytes': size,
+        'errors': runs[-1][2],
+        'median_ms': elapsed / 1e6,
+        'files_per_s': len(files) / (elapsed / 1e9),
+        'us_per_file': elapsed / 1e3 / len(files),
+        'allocated_bytes_per_file': allocated // len(files) if allocated >= 0 else None,
+        'allocation_mb_per_s': (allocated / 1e6) / (elapsed / 1e9) if allocated >= 0 else None
+    }
+
+def get_checkstyle_jar(project_name):
+    dataset_info = open_json(os.path.join(get_real_dataset_dir(project_name), 'info.json'))
+    return os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, dataset_info['checkstyle_jar'])
+
+def single_module_configs(checkstyle_file_path):
+    """
+    One config per check of the compiled config, with only Checker and TreeWalker around it
+    :return: {module name: config path}
+    """
+    root = ET.parse(checkstyle_file_path).getroot()
+    modules = {}
+
+    def leaves(element, parents):
+        for child in element.findall('module'):
+            if len(child.findall('module')) > 0:
+                yield from leaves(child, parents + [child])
+            else:
+                yield child, parents
+
+    for leaf, parents in leaves(root, []):
+        name = leaf.attrib['name']
+        single_root = copy.deepcopy(root)
+        parent = single_root
+        for module in parents:
+            kept = copy.deepcopy(module)
+            for child in kept.findall('module'):
+                kept.remove(child)
+            for child in parent.findall('module'):
+                parent.remove(child)
+            parent.append(kept)
+            parent = kept
+        for child in parent.findall('module'):
+            parent.remove(child)
+        parent.append(copy.deepcopy(leaf))
+        index = len([ key for key in modules if key.split('#')[0] == name ])
+        key = name if index == 0 else f'{name}#{index}'
+        module_path = os.path.join(get_benchmark_dir(), f'{os.path.basename(checkstyle_file_path)[:-4]}-{key}.xml')
+        save_file_in_path(module_path, ET.tostring(single_root, encoding='unicode'))
+        modules[key] = module_path
+    return modules
+
+def bench_configs(projects, per_stratum=25, warmup=3, iterations=5):
+    files = sample_files(get_dataset_files(), per_stratum)
+    results = {}
+    for project_name in tqdm(projects, desc='config'):
+        checkstyle_jar = get_checkstyle_jar(project_name)
+        config = checkstyle.compile_config(os.path.join(get_real_dataset_dir(project_name), 'checkstyle.xml'))
+        results[project_name] = dict(
+            measure(checkstyle.get_server(checkstyle_jar), config, files, warmup, iterations),
+            jar=os.path.basename(checkstyle_jar)
+        )
+    return results
+
+def bench_modules(project_name, per_stratum=25, warmup=3, iterations=5):
+    files = sample_files(get_dataset_files(), per_stratum)
+    server = checkstyle.get_server(get_checkstyle_jar(project_name))
+    config = checkstyle.compile_config(os.path.join(get_real_dataset_dir(project_name), 'checkstyle.xml'))
+    # the cost of parsing without checks, subtracted from the cost of each module
+    baseline = measure(server, remove_checks(config), files, warmup, iterations)
+    results = { '(baseline)': baseline }
+    for name, module_config in tqdm(single_module_configs(config).items(), desc='module'):
+        result = measure(server, module_config, files, warmup, iterations)
+        result['us_per_file_over_baseline'] = result['us_per_file'] - baseline['us_per_file']
+        results[name] = result
+    return results
+
+def remove_checks(checkstyle_file_path):
+    """
+    The config with the checks removed, TreeWalker is kept so that the files are still parsed
+    """
+    root = ET.parse(checkstyle_file_path).getroot()
+    for tree_walker in root.iter('module'):
+        if tree_walker.attrib.get('name') == 'TreeWalker':
+            for child in tree_walker.findall('module'):
+                tree_walker.remove(child)
+            # an empty TreeWalker does not parse, keep a check that does almost nothing
+            ET.SubElement(tree_walker, 'module', { 'name': 'OuterTypeNumber' })
+    for child in root.findall('module'):
+        if child.attrib.get('name') != 'TreeWalker':
+            root.remove(child)
+    baseline_path = os.path.join(get_benchmark_dir(), f'{os.path.basename(checkstyle_file_path)[:-4]}-baseline.xml')
+    save_file_in_path(baseline_path, ET.tostring(root, encoding='unicode'))
+    return baseline_path
+
+def bench_window(files=20, context=6):
+    """
+    Full check vs check_window on the biggest files of the real error datasets, around their error
+    :return: {'files': [{file, full_ms, window_ms, agree}], 'stats': checkstyle.window_check_stats}
+    """
+    file_paths = sorted(get_dataset_files(), key=lambda file_path: -os.path.getsize(file_path))[:files]
+    results = []
+    for file_path in tqdm(file_paths, desc='file'):
+        project_name = file_path.split(os.sep)[-5]
+        metadata = open_json(os.path.join(os.path.dirname(file_path), 'metadata.json'))
+        line = int(metadata['errors'][0]['line'])
+        config = checkstyle.compile_config(os.path.join(get_real_dataset_dir(project_name), 'checkstyle.xml'))
+        jar = get_checkstyle_jar(project_name)
+        start = time.perf_counter()
+        full, _ = checkstyle.check(config, file_path, jar, only_targeted=True, only_java=True)
+        full_time = time.perf_counter() - start
+        start = time.perf_counter()
+        window, _ = checkstyle.check_window(config, file_path, max(1, line - context), line + context, jar)
+        window_time = time.perf_counter() - start
+        errors = lambda output: sorted([ (error['line'], error['source']) for result in output.values() for error in result['errors'] ])
+        results.append({
+            'file': file_path,
+            'bytes': os.path.getsize(file_path),
+            'full_ms': full_time * 1000,
+            'window_ms': window_time * 1000,
+            # the window check only sees the member, compare the errors of the member window
+            'agree': [ error for error in errors(full) if abs(int(error[0]) - line) <= context ] == [ error for error in errors(window) if abs(int(error[0]) - line) <= context ]
+        })
+    return { 'files': results, 'stats': dict(checkstyle.window_check_stats) }
+
+def print_results(results, sort_key='us_per_file'):
+    for name, result in sorted(results.items(), key=lambda item: -item[1][sort_key]):
+        allocated = result['allocated_bytes_per_file']
+        print(f'{name:<60} {result["us_per_file"]:>10.1f} us/file {result["files_per_s"]:>10.1f} files/s {allocated if allocated is not None else "-":>12} B/file')
+
+def main(args):
+    if args[1] == 'configs':
+        projects = args[2:] if len(args) > 2 else list_projects()
+        results = bench_configs(projects)
+        save_json(get_benchmark_dir(), 'configs.json', results)
+        print_results(results)
+    elif args[1] == 'modules':
+        results = bench_modules(args[2])
+        save_json(get_benchmark_dir(), f'modules-{args[2]}.json', results)
+        print_results(results)
+    elif args[1] == 'window':
+        results = bench_window(int(args[2]) if len(args) > 2 else 20)
+        save_json(get_benchmark_dir(), 'window.json', results)
+        speedups = sorted([ result['full_ms'] / result['window_ms'] for result in results['files'] ])
+        print(f'stats: {results["stats"]}')
+        print(f'agreement: {sum([ result["agree"] for result in results["files"] ])}/{len(results["files"])}')
+        print(f'median speedup: {speedups[len(speedups) // 2]:.2f}x')
+
+if __name__ == "__main__":
+    main(sys.argv)
@@ -0,0 +1,118 @@
+"""
+Regression tests of the Checkstyle wrapper, they need the jars of checkstyle.py.
+Each case prints ok or FAILED with the reason, the exit code is the number of failed cases.
+
+python checkstyle_regression.py [checkstyle jar]
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+import checkstyle
+import regression
+
+_BROKEN_CONFIG = '''<?xml version="1.0"?>
+<!DOCTYPE module PUBLIC "-//Checkstyle//DTD Checkstyle Configuration 1.3//EN" "https://checkstyle.org/dtds/configuration_1_3.dtd">
+<module name="Checker">
+    <module name="TreeWalker">
+        <module name="ThisCheckDoesNotExist"/>
+    </module>
+</module>
+'''
+
+_SOURCE = 'public class A {\n    int a;\n}\n'
+
+def case_server_broken_config(checkstyle_jar, work_dir):
+    """
+    A config that does not load is a failure of the server, never an audit without errors
+    """
+    config = save_file(work_dir, 'broken.xml', _BROKEN_CONFIG)
+    file_path = checkstyle.to_checkstyle_path(save_file(work_dir, 'A.java', _SOURCE))
+    try:
+        checkstyle.get_server(os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, checkstyle_jar)).check(config, [file_path])
+        return 'the server did not raise'
+    except Exception:
+        pass
+    server = core_config['CHECKSTYLE'].get('server')
+    core_config['CHECKSTYLE']['server'] = 'True'
+    try:
+        output, _ = checkstyle.check_files(config, [file_path], os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, checkstyle_jar))
+        if output is not None:
+            return f'check_files returned {output}'
+        output, _ = checkstyle.check_sources(config, { file_path: _SOURCE }, checkstyle_jar)
+        if output is not None:
+            return f'check_sources returned {output}'
+    finally:
+        if server is None:
+            core_config.remove_option('CHECKSTYLE', 'server')
+        else:
+            core_config['CHECKSTYLE']['server'] = server
+
+_EXCLUSION_CONFIG = '''<?xml version="1.0"?>
+<!DOCTYPE module PUBLIC "-//Checkstyle//DTD Checkstyle Configuration 1.3//EN" "https://checkstyle.org/dtds/configuration_1_3.dtd">
+<module name="Checker">
+    <property name="fileExtensions" value="java"/>
+    <module name="BeforeExecutionExclusionFileFilter">
+        <property name="fileNamePattern" value="Excluded\\.java$"/>
+    </module>
+    <module name="NewlineAtEndOfFile"/>
+</module>
+'''
+
+def case_server_file_filters(checkstyle_jar, work_dir):
+    """
+    The server skips the files of the before execution file filters and of the other extensions, as Checker.process
+    """
+    config = save_file(work_dir, 'exclusion.xml', _EXCLUSION_CONFIG)
+    source = _SOURCE.rstrip('\n')
+    sources = { os.path.join(work_dir, name): source for name in ('A.java', 'Excluded.java', 'A.txt') }
+    output, _ = checkstyle.get_server(os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, checkstyle_jar)).check(config, [], sources=sources)
+    output = checkstyle.parse_output(output)
+    if output is None:
+        return 'the server failed'
+    if sorted(output.keys()) != [ os.path.join(work_dir, 'A.java') ]:
+        return f'{sorted(output.keys())} audited instead of A.java'
+    if len(output[os.path.join(work_dir, 'A.java')]['errors']) != 1:
+        return f'{output} instead of one NewlineAtEndOfFile error'
+
+def case_cds_archives(checkstyle_jar, work_dir):
+    """
+    Each jar and each server jar has its own archive
+    """
+    paths = []
+    for jar in checkstyle._CHECKSTYLE_JARS:
+        jar_path = os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, jar)
+        paths += [ jar_path, os.path.join(checkstyle._SERVER_BUILD_DIR, f'{jar[:-len(".jar")]}-server.jar') ]
+    archives = [ get_cds_archive(path) for path in paths ]
+    if len(set(archives)) != len(archives):
+        return f'{len(archives) - len(set(archives))} archives are shared'
+    if get_cds_archive('jars/server/checkstyle-8.10.1-all-server.jar') != 'jars/server/checkstyle-8.10.1-all-server.jsa':
+        return get_cds_archive('jars/server/checkstyle-8.10.1-all-server.jar')
+
+def case_server_archive(checkstyle_jar, work_dir):
+    """
+    The archive of the server is created and used by the server
+    """
+    import appcds
+    jar_path = os.path.join(checkstyle._CHECKSTYLE_JARS_DIR, checkstyle_jar)
+    archive = appcds.create_server_archive(jar_path)
+    if archive is None:
+        return 'no archive created'
+    if f'-XX:SharedArchiveFile={archive}' not in get_java_options(checkstyle.compile_server(jar_path)):
+        return 'the archive is not used by the server'
+
+_CASES = {
+    'server_broken_config': case_server_broken_config,
+    'server_file_filters': case_server_file_filters,
+    'cds_archives': case_cds_archives,
+    'server_archive': case_server_archive,
+}
+
+def main(args):
+    checkstyle_jar = args[1] if len(args) > 1 else os.path.basename(checkstyle._CHECKSTYLE_JAR)
+    if not core_config.has_section('CHECKSTYLE'):
+        core_config['CHECKSTYLE'] = {}
+    return regression.run_cases(_CASES, checkstyle_jar)
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
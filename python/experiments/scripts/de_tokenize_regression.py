@@ -0,0 +1,76 @@
+"""
+Regression test of tokenizer.de_tokenize_splice against tokenizer.de_tokenize_full on the real error datasets.
+For each error, the translations are the errored tokens themselves and random changes of their white spaces,
+the two de-tokenizations must give the same bytes (or the splice must give up and return None).
+
+python de_tokenize_regression.py [projects...]
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+import tokenizer
+
+import random
+import time
+
+_WHITE_SPACES = ('0_SP', '1_SP', '2_SP', '4_SP', '1_NL', '2_NL', '1_NL_4_ID', '1_NL_4_DD', '1_NL_8_ID', '1_NL_8_DD', '1_NL_1_ID')
+_CHANGES_PER_ERROR = 5
+
+def gen_translations(tokens_errored_in_tag, generator):
+    translations = [ list(tokens_errored_in_tag) ]
+    for _ in range(_CHANGES_PER_ERROR):
+        translation = list(tokens_errored_in_tag)
+        for index in range(1, len(translation), 2):
+            if generator.random() < 0.2:
+                translation[index] = generator.choice(_WHITE_SPACES)
+        translations.append(translation)
+    return translations
+
+def run_de_tokenize(function, source, info, translation):
+    try:
+        return function(source, info, translation, tabulations=False)
+    except Exception as e:
+        return e.__class__.__name__
+
+def regression(projects, seed=0):
+    generator = random.Random(seed)
+    results = { 'translations': 0, 'same': 0, 'fallback': 0, 'different': {}, 'full_s': 0, 'splice_s': 0 }
+    for project_name in tqdm(projects, desc='project'):
+        for file_path in sorted(glob.glob(os.path.join(get_real_dataset_dir(project_name), '*', '*', '*.java'))):
+            errors = open_json(os.path.join(os.path.dirname(file_path), 'metadata.json'))['errors']
+            for error in errors:
+                error['type'] = checkstyle_source_to_error_type(error['source'])
+            # as styler.tokenize_errors
+            errors = [ error for error in errors if is_error_targeted(error) ]
+            try:
+                contexts = tokenizer.tokenize_file_to_repair_errors(file_path, errors)
+            except Exception:
+                continue
+            source = open_file(file_path)
+            for _, info in contexts:
+                # the contexts of the big files are relative to their region, as in de_tokenize
+                info = tokenizer.get_file_error_info(source, info)
+                for translation in gen_translations(info['tokens_errored_in_tag'], generator):
+                    start = time.perf_counter()
+                    expected = run_de_tokenize(tokenizer.de_tokenize_full, source, info, translation)
+                    results['full_s'] += time.perf_counter() - start
+                    start = time.perf_counter()
+                    result = run_de_tokenize(tokenizer.de_tokenize_splice, source, info, translation)
+                    results['splice_s'] += time.perf_counter() - start
+                    results['translations'] += 1
+                    if result is None:
+                        results['fallback'] += 1
+                    elif result == expected:
+                        results['same'] += 1
+                    else:
+                        results['different'][f'{file_path}:{info["error"]["line"]}'] = ' '.join(translation)
+    return results
+
+if __name__ == "__main__":
+    projects = sys.argv[1:] if len(sys.argv) > 1 else list_folders(get_output_dir())
+    results = regression(projects)
+    for key, translation in results['different'].items():
+        print(f'{key}: {translation}')
+    print(f'{results["same"]} same, {len(results["different"])} different, {results["fallback"]} fallbacks out of {results["translations"]} translations')
+    print(f'full: {results["full_s"]:.1f} s, splice: {results["splice_s"]:.1f} s')
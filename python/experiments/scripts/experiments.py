@@ -130,6 +130,13 @@ def experiment(name, corpus_dir, execute=True):
             #else:
             #    repair.call_repair_tool(tool, orig_dir=clean_dir, ugly_dir=f'{errored_dir}/1', output_dir=experiment_tool_dir, dataset_metadata=metadata)
         # timer.end_task(f'{name}_{tool}')
+
+    # one Checkstyle run for all the tools and the errored files (used by json_report)
+    targets = { tool:tool for tool in tools_plus_styler_protocols }
+    targets['errored'] = 'errored/1'
+    repair.prefetch_checkstyle_results(targets, experiment_dir, checkstyle_jar, only_targeted=True)
+
+    for tool in tools_plus_styler_protocols:
         repaired = repair.get_repaired(tool, experiment_dir, checkstyle_jar, only_targeted=True)
         result[tool] = repaired
         # print(f'{tool} : {len(repaired)}')
@@ -271,7 +278,11 @@ def json_report(project_name):
     checkstyle_jar = dataset_info["checkstyle_jar"]
 
     logger.debug('Getting the original errors')
-    (errored_result, _) = checkstyle.check(checkstyle_path, errored_dir, checkstyle_jar, only_targeted=True, only_java=True)
+    errored_results_path = os.path.join(experiment_dir, 'checkstyle_results_errored.json')
+    if os.path.exists(errored_results_path) and not checkstyle.is_cache_enabled():
+        errored_result = open_json(errored_results_path)['checkstyle_results']
+    else:
+        (errored_result, _) = checkstyle.check(checkstyle_path, errored_dir, checkstyle_jar, only_targeted=True, only_java=True)
 
     def get_file_id(file_path):
         return file_path.split('/')[-2]
@@ -0,0 +1,111 @@
+"""
+Differential test and throughput of the regex lexer (java_lexer) against javalang.
+Both lexers tokenize every java file of the real error datasets, the tokens are compared
+on their class, value and position, and a failure of javalang must be a failure of java_lexer.
+
+python lexer_benchmark.py diff [projects...]
+python lexer_benchmark.py throughput [files]
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+import java_lexer
+from javalang import tokenizer as javalang_tokenizer
+
+import time
+
+def get_benchmark_dir():
+    return create_dir(os.path.join(get_output_dir(), 'lexer_benchmark'))
+
+def get_dataset_files(projects=None):
+    if not projects:
+        projects = list_folders(get_output_dir())
+    files = []
+    for project_name in projects:
+        files += glob.glob(os.path.join(get_real_dataset_dir(project_name), '*', '*', '*.java'))
+    return sorted(files)
+
+def run_lexer(lexer, source):
+    """
+    :return: [(token class, value, line, column)], or the name of the exception
+    """
+    try:
+        return [
+            (token.__class__.__name__, token.value, token.position[0], token.position[1])
+            for token in lexer(source, parse_comments=True)
+        ]
+    except Exception as e:
+        return e.__class__.__name__
+
+def first_difference(tokens_A, tokens_B):
+    if isinstance(tokens_A, str) or isinstance(tokens_B, str):
+        return (tokens_A if isinstance(tokens_A, str) else None, tokens_B if isinstance(tokens_B, str) else None)
+    for token_A, token_B in zip(tokens_A, tokens_B):
+        if token_A != token_B:
+            return (token_A, token_B)
+    return (len(tokens_A), len(tokens_B))
+
+def diff(files):
+    """
+    :return: {'files': n, 'same': n, 'differences': {file: (javalang, java_lexer)}}
+    """
+    differences = {}
+    for file_path in tqdm(files, desc='file'):
+        source = open_file(file_path)
+        expected = run_lexer(javalang_tokenizer.tokenize, source)
+        result = run_lexer(java_lexer.tokenize, source)
+        if expected != result:
+            differences[file_path] = first_difference(expected, result)
+    return {
+        'files': len(files),
+        'same': len(files) - len(differences),
+        'differences': differences
+    }
+
+def time_lexer(lexer, sources):
+    start = time.perf_counter()
+    tokens = 0
+    for source in sources:
+        tokens += len(list(lexer(source, parse_comments=True)))
+    return time.perf_counter() - start, tokens
+
+def throughput(files, runs=3):
+    """
+    Best of the runs of each lexer on the same sources, read before the measure
+    """
+    sources = [ open_file(file_path) for file_path in files ]
+    size = sum([ len(source) for source in sources ])
+    results = {}
+    for name, lexer in (('javalang', javalang_tokenizer.tokenize), ('regex', java_lexer.tokenize)):
+        elapsed, tokens = min([ time_lexer(lexer, sources) for _ in range(runs) ])
+        results[name] = {
+            'files': len(sources),
+            'tokens': tokens,
+            'seconds': elapsed,
+            'tokens_per_s': tokens / elapsed,
+            'mb_per_s': size / 1e6 / elapsed
+        }
+    results['speedup'] = results['javalang']['seconds'] / results['regex']['seconds']
+    return results
+
+def main(args):
+    if args[1] == 'diff':
+        results = diff(get_dataset_files(args[2:]))
+        save_json(get_benchmark_dir(), 'diff.json', results)
+        for file_path, difference in results['differences'].items():
+            print(f'{file_path}: {difference}')
+        print(f'{results["same"]}/{results["files"]} files with the same tokens')
+    elif args[1] == 'throughput':
+        files = get_dataset_files()
+        if len(args) > 2:
+            files = files[::max(1, len(files) // int(args[2]))]
+        results = throughput(files)
+        save_json(get_benchmark_dir(), 'throughput.json', results)
+        for name in ('javalang', 'regex'):
+            result = results[name]
+            print(f'{name:<10} {result["tokens_per_s"]:>12.0f} tokens/s {result["mb_per_s"]:>8.2f} MB/s')
+        print(f'speedup: {results["speedup"]:.2f}x')
+
+if __name__ == "__main__":
+    main(sys.argv)
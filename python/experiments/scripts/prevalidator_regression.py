@@ -0,0 +1,111 @@
+"""
+Regression tests of the prevalidator on sources where Checkstyle is known to report nothing
+(or a given violation). Each case prints ok or FAILED with the reason, the exit code is the
+number of failed cases. See `python prevalidator.py agreement` for the comparison with Checkstyle.
+
+python prevalidator_regression.py
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+import prevalidator
+import regression
+
+def get_config(modules):
+    """
+    A checkstyle.xml with the given modules in the TreeWalker, or in the Checker for the filters
+    """
+    tree_walker = ''.join([ module for module in modules if 'Filter' not in module ])
+    checker = ''.join([ module for module in modules if 'Filter' in module ])
+    return f'<?xml version="1.0"?>\n<module name="Checker">{checker}<module name="TreeWalker">{tree_walker}</module></module>\n'
+
+def validate(work_dir, modules, content, checkstyle_jar=None):
+    config = save_file(work_dir, f'checkstyle-{uuid.uuid4().hex}.xml', get_config(modules))
+    return [ (error['line'], error.get('column'), checkstyle_source_to_error_type(error['source'])) for error in prevalidator.Prevalidator(config, checkstyle_jar).validate(content) ]
+
+def expect(errors, expected):
+    if errors != expected:
+        return f'{errors} instead of {expected}'
+
+def case_filters(work_dir):
+    """
+    The filters suppress by path, xpath or comments of any format, the configs with filters are not validated
+    """
+    content = 'class A {\n    int a ;\n}\n'
+    for filter in (
+        '<module name="SuppressionFilter"><property name="file" value="suppressions.xml"/></module>',
+        '<module name="SuppressionSingleFilter"><property name="files" value="A.java"/></module>',
+        '<module name="SuppressionXpathFilter"><property name="file" value="suppressions.xml"/></module>',
+        '<module name="SuppressWithPlainTextCommentFilter"><property name="offCommentFormat" value="FORMAT OFF"/></module>',
+    ):
+        reason = expect(validate(work_dir, ['<module name="NoWhitespaceBefore"/>', filter], content), [])
+        if reason:
+            return f'{filter}: {reason}'
+    return expect(validate(work_dir, ['<module name="NoWhitespaceBefore"/>'], content), [('2', '11', 'NoWhitespaceBefore')])
+
+def case_no_whitespace_before_line_break(work_dir):
+    """
+    A token first on its line is only a violation when allowLineBreaks is false
+    """
+    content = 'class A {\n    void a() {\n        b()\n; \n    }\n}\n'
+    reason = expect(validate(work_dir, ['<module name="NoWhitespaceBefore"><property name="allowLineBreaks" value="true"/></module>'], content), [])
+    if reason:
+        return reason
+    return expect(validate(work_dir, ['<module name="NoWhitespaceBefore"/>'], content), [('4', '1', 'NoWhitespaceBefore')])
+
+def case_paren_pad_trailing_whitespace(work_dir):
+    """
+    A '(' followed by whitespaces up to the end of the line is not a violation
+    """
+    content = 'class A {\n    void a() {\n        b( \n            1);\n        b( 1);\n    }\n}\n'
+    return expect(validate(work_dir, ['<module name="ParenPad"/>'], content), [('5', '10', 'ParenPad')])
+
+def case_first_line_columns(work_dir):
+    """
+    The columns of javalang start at 0 on the first line only
+    """
+    content = 'class A { int a ; int b= 1; }\n'
+    return expect(validate(work_dir, ['<module name="NoWhitespaceBefore"/>', '<module name="WhitespaceAround"/>'], content), [
+        ('1', '17', 'NoWhitespaceBefore'),
+        ('1', '24', 'WhitespaceAround')
+    ])
+
+def case_while_tokens(work_dir):
+    """
+    The while of a do is DO_WHILE, the while statement is LITERAL_WHILE
+    """
+    content = 'class A {\n    void a() {\n        do {\n            b();\n        } while(c);\n        while(c) {\n        }\n    }\n}\n'
+    for tokens, expected in (('LITERAL_WHILE', [('6', '9', 'WhitespaceAfter')]), ('DO_WHILE', [('5', '11', 'WhitespaceAfter')])):
+        reason = expect(validate(work_dir, [f'<module name="WhitespaceAfter"><property name="tokens" value="{tokens}"/></module>'], content), expected)
+        if reason:
+            return f'{tokens}: {reason}'
+    # without a block, the while after a do can not be told apart
+    content = 'class A {\n    void a() {\n        do b(); while(c);\n    }\n}\n'
+    return expect(validate(work_dir, ['<module name="WhitespaceAfter"><property name="tokens" value="LITERAL_WHILE"/></module>'], content), [])
+
+def case_default_tokens_version(work_dir):
+    """
+    The default tokens are only used with the jars of their version of Checkstyle and the later ones
+    """
+    content = 'class A {\n    int a ;\n}\n'
+    for checkstyle_jar, expected in (('checkstyle-8.33-all.jar', [('2', '11', 'NoWhitespaceBefore')]), ('checkstyle-8.10.1-all.jar', [])):
+        reason = expect(validate(work_dir, ['<module name="NoWhitespaceBefore"/>'], content, checkstyle_jar), expected)
+        if reason:
+            return f'{checkstyle_jar}: {reason}'
+    return expect(validate(work_dir, ['<module name="NoWhitespaceBefore"><property name="tokens" value="SEMI"/></module>'], content, 'checkstyle-8.10.1-all.jar'), [('2', '11', 'NoWhitespaceBefore')])
+
+_CASES = {
+    'filters': case_filters,
+    'no_whitespace_before_line_break': case_no_whitespace_before_line_break,
+    'paren_pad_trailing_whitespace': case_paren_pad_trailing_whitespace,
+    'first_line_columns': case_first_line_columns,
+    'while_tokens': case_while_tokens,
+    'default_tokens_version': case_default_tokens_version,
+}
+
+def main(args):
+    return regression.run_cases(_CASES)
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
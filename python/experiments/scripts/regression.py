@@ -0,0 +1,24 @@
+"""
+Runner of the regression scripts: each case is a function of the script arguments and of a
+temporary directory, it returns None when it passes or the reason of its failure.
+"""
+import shutil
+import tempfile
+
+def run_cases(cases, *args):
+    """
+    Runs the cases {name: case} in order, each in its own temporary directory
+    :return: the number of failed cases
+    """
+    failed = 0
+    for name, case in cases.items():
+        work_dir = tempfile.mkdtemp()
+        try:
+            reason = case(*args, work_dir)
+        except Exception as err:
+            reason = f'{err.__class__.__name__}: {err}'
+        finally:
+            shutil.rmtree(work_dir, ignore_errors=True)
+        print(f'{name}: {"ok" if reason is None else "FAILED " + reason}')
+        failed += reason is not None
+    return failed
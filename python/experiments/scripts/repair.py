@@ -104,7 +104,9 @@ def get_checkstyle_results(tool, dir, checkstyle_jar, only_targeted=False, check
     file_name = f'checkstyle_results_{tool}.json'
     result_file_dir = f'{dir}/{file_name}'
     results_json = {}
-    if os.path.exists(result_file_dir):
+    # with the content-addressed Checkstyle cache the results are always
+    # recomputed, so the json file can not go stale
+    if os.path.exists(result_file_dir) and not checkstyle.is_cache_enabled():
         results_json = open_json(result_file_dir)
     else:
         if checkstyle_rules is None:
@@ -116,6 +118,30 @@ def get_checkstyle_results(tool, dir, checkstyle_jar, only_targeted=False, check
     return results_json['checkstyle_results'], results_json['number_of_errors']
 
 
+def prefetch_checkstyle_results(targets, dir, checkstyle_jar, only_targeted=False, checkstyle_rules=None):
+    """
+    Compute the checkstyle results of several tools with a single Checkstyle run,
+    the results are saved the same way as get_checkstyle_results does
+    :param targets: {tool: path of the files relative to dir}, the tool by default
+    """
+    missing = {
+        tool:os.path.join(dir, path)
+        for tool, path in targets.items()
+        if os.path.exists(os.path.join(dir, path))
+        and (checkstyle.is_cache_enabled() or not os.path.exists(f'{dir}/checkstyle_results_{tool}.json'))
+    }
+    if len(missing) == 0:
+        return
+    if checkstyle_rules is None:
+        checkstyle_rules = os.path.join(dir, 'checkstyle.xml')
+    results = checkstyle.check_multi(checkstyle_rules, missing, checkstyle_jar, only_targeted=only_targeted, only_java=True)
+    for tool, (checkstyle_results, number_of_errors) in results.items():
+        save_json(dir, f'checkstyle_results_{tool}.json', {
+            'checkstyle_results': checkstyle_results,
+            'number_of_errors': number_of_errors
+        })
+
+
 def get_repaired(tool, dir, checkstyle_jar, batch=False, only_targeted=False, checkstyle_rules=None):
     """
     Return the list of files repaired during the experiment
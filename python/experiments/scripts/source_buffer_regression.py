@@ -0,0 +1,56 @@
+"""
+Regression tests of SourceBuffer against the list of the lines given by readlines.
+Each case prints ok or FAILED with the reason, the exit code is the number of failed cases.
+
+python source_buffer_regression.py
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+from source_buffer import SourceBuffer
+import regression
+
+import io
+
+_TEXTS = ('', 'a', 'a\n', '\n', 'a\nb', 'a\nb\n', 'a\r\nb\r\n', '\n\nc\n')
+
+def get_lines(text):
+    return io.StringIO(text, newline='').readlines()
+
+def case_empty(work_dir):
+    """
+    An empty text has no lines, its only position is (1, 1)
+    """
+    buffer = SourceBuffer('')
+    if len(buffer) != 0 or buffer.get_lines() != '':
+        return f'{len(buffer)} lines'
+    if buffer.get_position(0) != (1, 1):
+        return f'position {buffer.get_position(0)} instead of (1, 1)'
+    if buffer.get_offset(1, 1) != 0:
+        return f'offset {buffer.get_offset(1, 1)} instead of 0'
+
+def case_positions(work_dir):
+    """
+    get_position and get_offset are the inverse of each other on every character
+    """
+    for text in _TEXTS:
+        buffer = SourceBuffer(text)
+        lines = get_lines(text)
+        if len(buffer) != len(lines):
+            return f'{repr(text)}: {len(buffer)} lines instead of {len(lines)}'
+        for offset in range(len(text)):
+            line, column = buffer.get_position(offset)
+            if len(''.join(lines[:line - 1])) + column - 1 != offset or buffer.get_offset(line, column) != offset:
+                return f'{repr(text)}: ({line}, {column}) for the offset {offset}'
+
+_CASES = {
+    'empty': case_empty,
+    'positions': case_positions,
+}
+
+def main(args):
+    return regression.run_cases(_CASES)
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
@@ -0,0 +1,203 @@
+"""
+Benchmark of the tokenizer on the files of the real error datasets, stratified by file size.
+For each size stratum: the throughput of the tokenization and of reformat (tokens/s), the latency
+percentiles per error of tokenize_file_to_repair, de_tokenize and mix_sources, and the peak of the
+python allocations of each step (tracemalloc, in a separate pass so that it does not slow the timings).
+The results are saved as <commit>.json to compare the runs across commits.
+The tokenization cache is cleared before each file, the disk tier ([TOKENIZER] disk_cache) is disabled.
+
+python tokenizer_benchmark.py run [files per stratum]
+python tokenizer_benchmark.py compare <before.json> <after.json>
+"""
+import sys
+from os import path
+sys.path.append(path.dirname(path.dirname(path.dirname(path.abspath(__file__)))))
+from core import *
+import tokenizer
+
+import platform
+import random
+import time
+import tracemalloc
+
+# upper bounds (bytes) of the size strata of the sample
+_SIZE_STRATA = (2000, 8000, 32000, float('inf'))
+
+def get_benchmark_dir():
+    return create_dir(os.path.join(get_output_dir(), 'tokenizer_benchmark'))
+
+def get_dataset_files():
+    files = []
+    for project_name in list_folders(get_output_dir()):
+        files += glob.glob(os.path.join(get_real_dataset_dir(project_name), '*', '*', '*.java'))
+    return sorted(files)
+
+def sample_strata(files, per_stratum, seed=0):
+    """
+    The same number of files from each size stratum
+    :return: {stratum name: [file]}
+    """
+    strata = [ [] for _ in _SIZE_STRATA ]
+    for file_path in files:
+        size = os.path.getsize(file_path)
+        strata[next(index for index, bound in enumerate(_SIZE_STRATA) if size < bound)].append(file_path)
+    generator = random.Random(seed)
+    return {
+        f'<{bound}' if bound != float('inf') else f'>={_SIZE_STRATA[-2]}': sorted(generator.sample(stratum, min(per_stratum, len(stratum))))
+        for bound, stratum in zip(_SIZE_STRATA, strata)
+    }
+
+def get_git_commit():
+    try:
+        return subprocess.check_output(['git', 'rev-parse', 'HEAD'], cwd=path.dirname(path.abspath(__file__))).decode('utf-8').strip()
+    except (subprocess.CalledProcessError, FileNotFoundError):
+        return 'unknown'
+
+def clear_tokenization_cache():
+    cache = tokenizer.get_tokenization_cache()
+    if cache is not None:
+        cache.entries.clear()
+
+def get_errors(file_path):
+    errors = open_json(os.path.join(os.path.dirname(file_path), 'metadata.json'))['errors']
+    for error in errors:
+        error['type'] = checkstyle_source_to_error_type(error['source'])
+    return [ error for error in errors if is_error_targeted(error) ]
+
+def get_percentiles(latencies):
+    """
+    :return: the percentiles of the latencies in ms
+    """
+    latencies = sorted(latencies)
+    if len(latencies) == 0:
+        return {}
+    percentile = lambda quantile: latencies[min(len(latencies) - 1, int(quantile * len(latencies)))] * 1000
+    return { 'count': len(latencies), 'p50_ms': percentile(0.5), 'p90_ms': percentile(0.9), 'p99_ms': percentile(0.99), 'max_ms': latencies[-1] * 1000 }
+
+def step_tokenize(sources, measures):
+    tokens = 0
+    for file_path, source in sources:
+        start = time.perf_counter()
+        whitespace, file_tokens = tokenizer.compute_tokenization(source, lexer=tokenizer.get_default_lexer())
+        measures.append(time.perf_counter() - start)
+        tokens += len(file_tokens)
+    return tokens
+
+def step_reformat(sources, measures):
+    tokens = 0
+    for file_path, source in sources:
+        whitespace, file_tokens = tokenizer.tokenize_cached(source)
+        start = time.perf_counter()
+        tokenizer.reformat(whitespace, file_tokens)
+        measures.append(time.perf_counter() - start)
+        tokens += len(file_tokens)
+    return tokens
+
+def step_tokenize_file_to_repair(sources, measures):
+    for file_path, source in sources:
+        for error in get_errors(file_path):
+            clear_tokenization_cache()
+            start = time.perf_counter()
+            tokenizer.tokenize_file_to_repair(file_path, error)
+            measures.append(time.perf_counter() - start)
+
+def step_de_tokenize(sources, measures):
+    for file_path, source in sources:
+        clear_tokenization_cache()
+        for _, info in tokenizer.tokenize_file_to_repair_errors(file_path, get_errors(file_path)):
+            # the errored tokens themselves, as a translation
+            start = time.perf_counter()
+            tokenizer.de_tokenize(source, info, info['tokens_errored_in_tag'], tabulations=False)
+            measures.append(time.perf_counter() - start)
+
+def step_mix_sources(sources, measures):
+    for file_path, source in sources:
+        whitespace, tokens = tokenizer.tokenize_cached(source)
+        reformatted = tokenizer.reformat(whitespace, tokens)
+        for error in get_errors(file_path):
+            line = int(error['line'])
+            clear_tokenization_cache()
+            start = time.perf_counter()
+            tokenizer.mix_sources(source, reformatted, line - 1, to_line=line + 1)
+            measures.append(time.perf_counter() - start)
+
+_STEPS = {
+    'tokenize': step_tokenize,
+    'reformat': step_reformat,
+    'tokenize_file_to_repair': step_tokenize_file_to_repair,
+    'de_tokenize': step_de_tokenize,
+    'mix_sources': step_mix_sources
+}
+
+def run_step(step, sources):
+    """
+    The step on the sources once for the timings, once more with tracemalloc for the peak
+    """
+    measures = []
+    tokens = _STEPS[step](sources, measures)
+    tracemalloc.start()
+    _STEPS[step](sources, [])
+    _, peak = tracemalloc.get_traced_memory()
+    tracemalloc.stop()
+    result = get_percentiles(measures)
+    result['peak_allocated_bytes'] = peak
+    if tokens is not None:
+        result['tokens'] = tokens
+        result['tokens_per_s'] = tokens / sum(measures) if sum(measures) > 0 else 0
+    return result
+
+def run(per_stratum=25):
+    core_config['TOKENIZER'] = dict(core_config['TOKENIZER']) if core_config.has_section('TOKENIZER') else {}
+    core_config['TOKENIZER']['disk_cache'] = 'False'
+    results = {
+        'commit': get_git_commit(),
+        'date': datetime.now().isoformat(),
+        'python': platform.python_version(),
+        'lexer': tokenizer.get_default_lexer(),
+        'per_stratum': per_stratum,
+        'strata': {}
+    }
+    for stratum, files in sample_strata(get_dataset_files(), per_stratum).items():
+        sources = [ (file_path, open_file(file_path)) for file_path in files ]
+        stratum_results = { 'files': len(sources), 'bytes': sum([ len(source) for _, source in sources ]) }
+        for step in tqdm(_STEPS, desc=stratum):
+            stratum_results[step] = run_step(step, sources)
+        results['strata'][stratum] = stratum_results
+    return results
+
+def print_results(results):
+    print(f'commit {results["commit"]}, lexer {results["lexer"]}')
+    for stratum, stratum_results in results['strata'].items():
+        print(f'{stratum} ({stratum_results["files"]} files)')
+        for step in _STEPS:
+            result = stratum_results[step]
+            throughput = f'{result["tokens_per_s"]:>12.0f} tokens/s' if 'tokens_per_s' in result else ' ' * 21
+            print(f'  {step:<25} {throughput} p50 {result.get("p50_ms", 0):>8.2f} ms p90 {result.get("p90_ms", 0):>8.2f} ms p99 {result.get("p99_ms", 0):>8.2f} ms peak {result["peak_allocated_bytes"] / 1e6:>8.2f} MB')
+
+def compare(before, after):
+    """
+    The ratios after/before of the p50 latencies and of the throughputs
+    """
+    print(f'{before["commit"][:12]} -> {after["commit"][:12]}')
+    for stratum, stratum_results in after['strata'].items():
+        if stratum not in before['strata']:
+            continue
+        for step, result in stratum_results.items():
+            previous = before['strata'][stratum].get(step)
+            if not isinstance(result, dict) or not previous or not previous.get('p50_ms'):
+                continue
+            line = f'{stratum:<10} {step:<25} p50 {result["p50_ms"] / previous["p50_ms"]:>6.2f}x'
+            if 'tokens_per_s' in result and previous.get('tokens_per_s'):
+                line += f' tokens/s {result["tokens_per_s"] / previous["tokens_per_s"]:>6.2f}x'
+            print(line)
+
+def main(args):
+    if args[1] == 'run':
+        results = run(int(args[2]) if len(args) > 2 else 25)
+        save_json(get_benchmark_dir(), f'{results["commit"][:12]}.json', results)
+        print_results(results)
+    elif args[1] == 'compare':
+        compare(open_json(args[2]), open_json(args[3]))
+
+if __name__ == "__main__":
+    main(sys.argv)
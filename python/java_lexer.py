@@ -0,0 +1,137 @@
+# -*- coding: utf-8 -*-
+
+"""
+Java lexer built on one precompiled regex, a faster drop-in for javalang.tokenizer.tokenize.
+It gives the same tokens as javalang: same classes (Keyword, Modifier, BasicType, the Literal
+subclasses, Comment...), same values and same positions, quirks included:
+ - the columns of the first line start at 0, the columns of the other lines at 1
+ - the new lines are only counted in the white spaces and the comments
+ - the char literals are String, '>>' is two '>' and '...' is an Operator
+The sources with unicode escapes (\\uXXXX), non ASCII characters or white spaces other than the
+ones of Java (space, \\t, \\f, \\r, \\n) outside of the comments and the literals are tokenized by
+javalang itself.
+See experiments/scripts/lexer_benchmark.py for the differential test against javalang.
+"""
+
+import re
+
+from javalang import tokenizer as javalang_tokenizer
+
+_DIGITS = r'\d(?:_*\d)*'
+
+# the white spaces before a token are matched with it, half the matches. Only the white spaces of
+# Java, \s would also match the unicode ones.
+# The alternatives that can start with the same character are in the order of javalang
+_TOKEN_RE = re.compile(r'''
+    (?P<white_space>[ \t\f\r\n]*)
+  (?:
+    (?P<identifier>[A-Za-z_$][A-Za-z0-9_$]*)
+  | (?P<separator>[(){{}}\[\];,]|\.(?![.\d]))
+  | (?P<comment>//[^\n]*\n?|/\*.*?\*/)
+  | (?P<unterminated_comment>/\*)
+  | (?P<hex_float>0[xX][0-9a-fA-F_]*\.?[0-9a-fA-F_]*[pP][-+]?\d+[fFdD]?)
+  | (?P<hex>0[xX](?:[0-9a-fA-F](?:_*[0-9a-fA-F])*)?[lL]?)
+  | (?P<binary>0[bB](?:[01](?:_*[01])*)?[lL]?)
+  | (?P<octal>0[0-7](?:_*[0-7])*[lL]?)
+  | (?P<float>(?:{digits}(?=[.eEfFdD])|(?=\.\d))(?:\.(?:{digits})?)?(?:[eE][-+]?(?:{digits})?)?[fFdD]?)
+  | (?P<integer>{digits}[lL]?)
+  | (?P<operator_ellipsis>\.\.\.)
+  | (?P<dot>\.)
+  | (?P<string>"(?:[^"\\]|\\.)*"|'(?:[^'\\]|\\.)*')
+  | (?P<unterminated_string>["'])
+  | (?P<operator>>>>=|>>=|<<=|->|::|\+\+|--|&&|\|\||[-+*/%^|&=!<>]=|<<|[-+*/%^|&:?~!<>=])
+  | (?P<annotation>@)
+  | (?P<other>.)
+  | (?P<end>\Z)
+  )
+'''.format(digits=_DIGITS), re.S | re.X)
+
+_ESCAPE_RE = re.compile(r'\\(.)', re.S)
+_VALID_ESCAPES = set('btnfru"\'\\01234567')
+
+_LITERAL_CLASSES = {
+    'hex_float': javalang_tokenizer.HexFloatingPoint,
+    'hex': javalang_tokenizer.HexInteger,
+    'binary': javalang_tokenizer.BinaryInteger,
+    'octal': javalang_tokenizer.OctalInteger,
+    'float': javalang_tokenizer.DecimalFloatingPoint,
+    'integer': javalang_tokenizer.DecimalInteger,
+    'operator_ellipsis': javalang_tokenizer.Operator,
+    'separator': javalang_tokenizer.Separator,
+    'string': javalang_tokenizer.String,
+    'operator': javalang_tokenizer.Operator,
+    'annotation': javalang_tokenizer.Annotation,
+    'dot': javalang_tokenizer.Separator
+}
+
+_KEYWORD_CLASSES = {}
+for _value in javalang_tokenizer.Keyword.VALUES:
+    if _value in javalang_tokenizer.BasicType.VALUES:
+        _KEYWORD_CLASSES[_value] = javalang_tokenizer.BasicType
+    elif _value in javalang_tokenizer.Modifier.VALUES:
+        _KEYWORD_CLASSES[_value] = javalang_tokenizer.Modifier
+    else:
+        _KEYWORD_CLASSES[_value] = javalang_tokenizer.Keyword
+for _value in javalang_tokenizer.Boolean.VALUES:
+    _KEYWORD_CLASSES[_value] = javalang_tokenizer.Boolean
+_KEYWORD_CLASSES['null'] = javalang_tokenizer.Null
+
+class _Fallback(Exception):
+    pass
+
+def tokenize(code, parse_comments=False):
+    """
+    Same as javalang_tokenizer.tokenize, returns a list instead of a generator
+    """
+    if '\\u' in code:
+        return list(javalang_tokenizer.tokenize(code, parse_comments=parse_comments))
+    try:
+        return _tokenize(code, parse_comments)
+    except _Fallback:
+        return list(javalang_tokenizer.tokenize(code, parse_comments=parse_comments))
+
+def _tokenize(code, parse_comments):
+    Position = javalang_tokenizer.Position
+    new_tuple = tuple.__new__
+    Identifier = javalang_tokenizer.Identifier
+    Comment = javalang_tokenizer.Comment
+    literal_classes = _LITERAL_CLASSES
+    keyword_classes = _KEYWORD_CLASSES
+    tokens = []
+    line = 1
+    # javalang starts at 0 for the first line (index of the last new line otherwise)
+    start_of_line = 0
+    javadoc = None
+    for match in _TOKEN_RE.finditer(code):
+        white_space, value = match.group(1, match.lastindex)
+        if '\n' in white_space:
+            line += white_space.count('\n')
+            start_of_line = match.start() + white_space.rfind('\n')
+        kind = match.lastgroup
+        start = match.end(1)
+        if kind == 'identifier':
+            tokens.append(keyword_classes.get(value, Identifier)(value, new_tuple(Position, (line, start - start_of_line)), javadoc))
+        elif kind == 'comment':
+            if parse_comments:
+                tokens.append(Comment(value, new_tuple(Position, (line, start - start_of_line))))
+            if value.startswith('/**'):
+                javadoc = value
+            if '\n' in value:
+                line += value.count('\n')
+                start_of_line = start + value.rfind('\n')
+            continue
+        elif kind in literal_classes:
+            if kind == 'string' and '\\' in value:
+                for escaped in _ESCAPE_RE.findall(value):
+                    if escaped not in _VALID_ESCAPES:
+                        raise javalang_tokenizer.LexerError(f'Illegal escape character at "{escaped}", line {line}')
+            tokens.append(literal_classes[kind](value, new_tuple(Position, (line, start - start_of_line)), javadoc))
+        elif kind == 'end':
+            break
+        elif kind == 'other' and (ord(value) > 127 or value.isspace()):
+            # a unicode identifier or white space, javalang knows the unicode categories
+            raise _Fallback()
+        else:
+            raise javalang_tokenizer.LexerError(f'Could not process token at "{value}", line {line}')
+        javadoc = None
+    return tokens
@@ -8,6 +8,12 @@ pp = pprint.PrettyPrinter(indent=4)
 # tf.logging.set_verbosity(tf.logging.INFO)
 
 def whatever(dir, folder, id, only_formatting=False):
+    return tokenizer.tokenize_errored_file_model2(*get_synthetic_error(dir, folder, id))
+
+def get_synthetic_error(dir, folder, id):
+    """
+    :return: (errored file, original file, error) of a synthetic error
+    """
     dir = os.path.join(dir, f'./{folder}/{id}')
     file_name = [ java_file for java_file in glob.glob(f'{dir}/*.java') if 'orig' not in java_file ][0].split('/')[-1].split('.')[0]
     file = f'{dir}/{file_name}.java'
@@ -17,7 +23,7 @@ def whatever(dir, folder, id, only_formatting=False):
     # Compatibility
     if 'line' not in error:
         error = error['error']
-    return tokenizer.tokenize_errored_file_model2(file, file_orig, error)
+    return file, file_orig, error
 
 def merge_IOs(sub_set, ids, target):
     dir = f'{target}/{sub_set}'
@@ -165,6 +171,7 @@ def beam_search(target_dir, pred_dir, n=1, only_formatting=False):
 
 def match_input_to_source(source, error_info, input):
     whitespace, tokens = tokenizer.tokenize_with_white_space(source)
+    error_info = tokenizer.get_file_error_info(source, error_info)
     start = error_info['start']
     end = error_info['end']
 
@@ -0,0 +1,595 @@
+# -*- coding: utf-8 -*-
+
+"""Pure python pre-validation of the cheap and local whitespace rules of Checkstyle.
+
+Only the violations that are certain are reported, so a candidate with
+violations can be rejected before calling Checkstyle. A candidate without
+violations still needs a Checkstyle run.
+"""
+
+import re
+import xml.etree.ElementTree as ET
+
+from core import *
+from javalang import tokenizer as javalang_tokenizer
+
+_WHITESPACE_PACKAGE = 'com.puppycrawl.tools.checkstyle.checks.whitespace'
+_CHECKS_PACKAGE = 'com.puppycrawl.tools.checkstyle.checks'
+_SIZES_PACKAGE = 'com.puppycrawl.tools.checkstyle.checks.sizes'
+
+_STATEMENT_KEYWORDS = ('if', 'for', 'while', 'switch', 'catch', 'synchronized', 'try')
+
+_WHITESPACE_AROUND_OPERATORS = {
+    'ASSIGN': '=',
+    'EQUAL': '==',
+    'NOT_EQUAL': '!=',
+    'LAND': '&&',
+    'LOR': '||',
+    'LE': '<=',
+    'GE': '>=',
+    'PLUS_ASSIGN': '+=',
+    'MINUS_ASSIGN': '-=',
+    'STAR_ASSIGN': '*=',
+    'DIV_ASSIGN': '/=',
+    'MOD_ASSIGN': '%=',
+    'SL_ASSIGN': '<<=',
+    'SR_ASSIGN': '>>=',
+    'BSR_ASSIGN': '>>>=',
+    'BXOR_ASSIGN': '^=',
+    'BOR_ASSIGN': '|=',
+    'BAND_ASSIGN': '&=',
+    'LAMBDA': '->',
+    'DIV': '/',
+    'MOD': '%',
+    'SL': '<<',
+    'BXOR': '^'
+}
+
+# the while of a do is the DO_WHILE token, see get_while_tokens
+_WHITESPACE_AFTER_TOKENS = {
+    'COMMA': ',',
+    'SEMI': ';',
+    'LITERAL_IF': 'if',
+    'LITERAL_ELSE': 'else',
+    'LITERAL_DO': 'do',
+    'LITERAL_FOR': 'for'
+}
+_WHILE_TOKENS = ('LITERAL_WHILE', 'DO_WHILE')
+
+_NO_WHITESPACE_BEFORE_TOKENS = ('COMMA', 'SEMI', 'POST_INC', 'POST_DEC', 'ELLIPSIS')
+_NO_WHITESPACE_AFTER_TOKENS = ('AT', 'INC', 'DEC', 'UNARY_MINUS', 'UNARY_PLUS', 'BNOT', 'LNOT', 'DOT')
+
+# the default tokens of the rules above are the ones of this version of Checkstyle, with an older
+# jar the modules of these rules are only validated when their tokens property is set
+_DEFAULT_TOKENS_VERSION = (8, 33)
+_DEFAULT_TOKENS_RULES = ('NoWhitespaceBefore', 'NoWhitespaceAfter', 'WhitespaceAfter', 'WhitespaceAround')
+
+
+class Source:
+    """
+    A java source as seen by the rules: its lines and its tokens.
+    code is the list of the tokens without the comments.
+    """
+    def __init__(self, content):
+        self.content = content
+        self.lines = [ line[:-1] if line.endswith('\r') else line for line in content.split('\n') ]
+        self.tokens = list(javalang_tokenizer.tokenize(content, parse_comments=True))
+        self.code = [ token for token in self.tokens if not isinstance(token, javalang_tokenizer.Comment) ]
+
+    def line(self, token):
+        return self.lines[token.position[0] - 1]
+
+    def index(self, token):
+        """Index of the first char of the token in its line, javalang counts the columns from 0 on the first line"""
+        if token.position[0] == 1:
+            return token.position[1]
+        return token.position[1] - 1
+
+    def previous(self, index):
+        return self.code[index - 1] if index > 0 else None
+
+    def next(self, index):
+        return self.code[index + 1] if index + 1 < len(self.code) else None
+
+
+def is_whitespace(char):
+    return char.isspace()
+
+
+def is_first_on_line(line, index):
+    return line[:index].strip() == ''
+
+
+def is_postfix(source, index):
+    previous = source.previous(index)
+    return previous is not None and (
+        isinstance(previous, javalang_tokenizer.Identifier) or previous.value in (')', ']')
+    )
+
+
+def is_unary(source, index):
+    previous = source.previous(index)
+    if previous is None:
+        return True
+    if isinstance(previous, javalang_tokenizer.Operator):
+        return previous.value not in ('++', '--')
+    return previous.value in ('(', '[', ',', '=', ';', '{', 'return', 'case')
+
+
+def get_while_tokens(source):
+    """
+    The token of each while of the code: DO_WHILE after the block of a do, LITERAL_WHILE otherwise,
+    None when it can not be told (a do without a block)
+    """
+    do_blocks = set()
+    stack = []
+    braceless_do = False
+    for index, token in enumerate(source.code):
+        previous = source.previous(index)
+        if token.value == '{':
+            stack.append(previous is not None and previous.value == 'do')
+        elif token.value == '}' and len(stack) > 0:
+            if stack.pop():
+                do_blocks.add(index)
+        elif token.value == 'do' and isinstance(token, javalang_tokenizer.Keyword):
+            following = source.next(index)
+            braceless_do = braceless_do or following is None or following.value != '{'
+    kinds = {}
+    for index, token in enumerate(source.code):
+        if token.value != 'while' or not isinstance(token, javalang_tokenizer.Keyword):
+            continue
+        if index - 1 in do_blocks:
+            kinds[index] = 'DO_WHILE'
+        elif not braceless_do:
+            kinds[index] = 'LITERAL_WHILE'
+        else:
+            kinds[index] = None
+    return kinds
+
+
+def get_tokens_option(properties, supported):
+    """
+    The tokens of the module that the rule knows how to validate
+    """
+    if 'tokens' not in properties:
+        return set(supported)
+    tokens = set([ token.strip() for token in properties['tokens'].split(',') ])
+    return tokens & set(supported)
+
+
+def paren_pad(source, properties):
+    """
+    ParenPad on the parenthesis of calls, declarations and statements.
+    Casts, lambdas and for headers are ignored since they are ambiguous.
+    """
+    if 'tokens' in properties:
+        return []
+    option = properties.get('option', 'nospace').lower()
+    errors = []
+    stack = []
+    for index, token in enumerate(source.code):
+        if token.value == '(':
+            previous = source.previous(index)
+            relevant = previous is not None and (
+                isinstance(previous, javalang_tokenizer.Identifier)
+                or previous.value in _STATEMENT_KEYWORDS
+            ) and previous.value != 'for'
+            stack.append(relevant)
+            if not relevant:
+                continue
+            line = source.line(token)
+            after = source.index(token) + 1
+            if after < len(line):
+                # the trailing whitespaces are ignored
+                if option == 'nospace' and is_whitespace(line[after]) and line[after:].strip() != '':
+                    errors.append((token, "'(' is followed by whitespace."))
+                elif option == 'space' and not is_whitespace(line[after]) and line[after] != ')':
+                    errors.append((token, "'(' is not followed by whitespace."))
+        elif token.value == ')':
+            relevant = stack.pop() if len(stack) > 0 else False
+            if not relevant:
+                continue
+            line = source.line(token)
+            before = source.index(token) - 1
+            if before >= 0:
+                if option == 'nospace' and is_whitespace(line[before]) and not is_first_on_line(line, before):
+                    errors.append((token, "')' is preceded with whitespace."))
+                elif option == 'space' and not is_whitespace(line[before]) and line[before] != '(':
+                    errors.append((token, "')' is not preceded with whitespace."))
+    return errors
+
+
+def method_param_pad(source, properties):
+    """
+    MethodParamPad on an identifier followed by a parenthesis (calls, declarations, new)
+    """
+    if 'tokens' in properties:
+        return []
+    option = properties.get('option', 'nospace').lower()
+    allow_line_breaks = properties.get('allowLineBreaks', 'false').lower() == 'true'
+    errors = []
+    in_annotation_name = False
+    for index, token in enumerate(source.code):
+        previous = source.previous(index)
+        if isinstance(token, javalang_tokenizer.Annotation):
+            in_annotation_name = True
+            continue
+        if in_annotation_name:
+            if isinstance(token, javalang_tokenizer.Identifier) or token.value == '.':
+                continue
+            in_annotation_name = False
+            continue
+        if token.value != '(' or not isinstance(previous, javalang_tokenizer.Identifier):
+            continue
+        line = source.line(token)
+        position = source.index(token)
+        if is_first_on_line(line, position):
+            if not allow_line_breaks:
+                errors.append((token, "'(' should be on the previous line."))
+        elif option == 'nospace' and is_whitespace(line[position - 1]):
+            errors.append((token, "'(' is preceded with whitespace."))
+        elif option == 'space' and not is_whitespace(line[position - 1]):
+            errors.append((token, "'(' is not preceded with whitespace."))
+    return errors
+
+
+def no_whitespace_before(source, properties):
+    tokens = get_tokens_option(properties, _NO_WHITESPACE_BEFORE_TOKENS)
+    allow_line_breaks = properties.get('allowLineBreaks', 'false').lower() == 'true'
+    errors = []
+    parens = []
+    for index, token in enumerate(source.code):
+        # the semicolons of the for headers are ignored
+        if token.value == '(':
+            previous = source.previous(index)
+            parens.append(previous is not None and previous.value == 'for')
+        elif token.value == ')' and len(parens) > 0:
+            parens.pop()
+        in_for_header = any(parens)
+        if token.value == ',':
+            relevant = 'COMMA' in tokens
+        elif token.value == ';':
+            relevant = 'SEMI' in tokens and not in_for_header
+        elif token.value == '++':
+            relevant = 'POST_INC' in tokens and is_postfix(source, index)
+        elif token.value == '--':
+            relevant = 'POST_DEC' in tokens and is_postfix(source, index)
+        elif token.value == '...':
+            relevant = 'ELLIPSIS' in tokens
+        else:
+            relevant = False
+        if not relevant:
+            continue
+        line = source.line(token)
+        before = source.index(token) - 1
+        if before == -1 or is_whitespace(line[before]):
+            if not allow_line_breaks or (before >= 0 and not is_first_on_line(line, before)):
+                errors.append((token, f"'{token.value}' is preceded with whitespace."))
+    return errors
+
+
+def no_whitespace_after(source, properties):
+    tokens = get_tokens_option(properties, _NO_WHITESPACE_AFTER_TOKENS)
+    allow_line_breaks = properties.get('allowLineBreaks', 'true').lower() == 'true'
+    errors = []
+    for index, token in enumerate(source.code):
+        if isinstance(token, javalang_tokenizer.Annotation):
+            relevant = 'AT' in tokens
+        elif token.value == '!':
+            relevant = 'LNOT' in tokens
+        elif token.value == '~':
+            relevant = 'BNOT' in tokens
+        elif token.value == '.' and isinstance(token, javalang_tokenizer.Separator):
+            relevant = 'DOT' in tokens
+        elif token.value == '++':
+            relevant = 'INC' in tokens and not is_postfix(source, index)
+        elif token.value == '--':
+            relevant = 'DEC' in tokens and not is_postfix(source, index)
+        elif token.value == '-':
+            relevant = 'UNARY_MINUS' in tokens and is_unary(source, index)
+        elif token.value == '+':
+            relevant = 'UNARY_PLUS' in tokens and is_unary(source, index)
+        else:
+            relevant = False
+        if not relevant:
+            continue
+        line = source.line(token)
+        after = source.index(token) + len(token.value)
+        if after < len(line):
+            followed_by_whitespace = is_whitespace(line[after])
+        else:
+            followed_by_whitespace = not allow_line_breaks
+        if followed_by_whitespace:
+            errors.append((token, f"'{token.value}' is followed by whitespace."))
+    return errors
+
+
+def whitespace_after(source, properties):
+    tokens = get_tokens_option(properties, list(_WHITESPACE_AFTER_TOKENS.keys()) + list(_WHILE_TOKENS))
+    values = set([ _WHITESPACE_AFTER_TOKENS[token] for token in tokens if token in _WHITESPACE_AFTER_TOKENS ])
+    while_tokens = get_while_tokens(source) if tokens & set(_WHILE_TOKENS) else {}
+    errors = []
+    for index, token in enumerate(source.code):
+        if index in while_tokens:
+            kind = while_tokens[index]
+            if kind not in tokens and (kind is not None or not set(_WHILE_TOKENS) <= tokens):
+                continue
+        elif token.value not in values:
+            continue
+        if isinstance(token, javalang_tokenizer.Literal) or isinstance(token, javalang_tokenizer.Identifier):
+            continue
+        line = source.line(token)
+        after = source.index(token) + len(token.value)
+        if after < len(line):
+            char_after = line[after]
+            if char_after not in (';', ')') and not is_whitespace(char_after):
+                errors.append((token, f"'{token.value}' is not followed by whitespace."))
+    return errors
+
+
+def whitespace_around(source, properties):
+    """
+    WhitespaceAround on the operators that can not be confused with a generic,
+    a unary operator or a wildcard
+    """
+    tokens = get_tokens_option(properties, _WHITESPACE_AROUND_OPERATORS.keys())
+    values = set([ _WHITESPACE_AROUND_OPERATORS[token] for token in tokens ])
+    errors = []
+    for token in source.code:
+        if token.value not in values or not isinstance(token, javalang_tokenizer.Operator):
+            continue
+        line = source.line(token)
+        before = source.index(token) - 1
+        after = source.index(token) + len(token.value)
+        if before >= 0 and not is_whitespace(line[before]):
+            errors.append((token, f"'{token.value}' is not preceded with whitespace."))
+        if after < len(line) and not is_whitespace(line[after]):
+            errors.append((token, f"'{token.value}' is not followed by whitespace."))
+    return errors
+
+
+def single_space_separator(source, properties):
+    """
+    SingleSpaceSeparator between two tokens of the same line, comments excluded
+    """
+    if properties.get('validateComments', 'false').lower() == 'true':
+        return []
+    errors = []
+    for token, next_token in zip(source.tokens, source.tokens[1:]):
+        if isinstance(token, javalang_tokenizer.Comment) or isinstance(next_token, javalang_tokenizer.Comment):
+            continue
+        if token.position[0] != next_token.position[0]:
+            continue
+        gap = source.index(next_token) - (source.index(token) + len(token.value))
+        if gap > 1:
+            errors.append((next_token, 'Use a single space to separate non-whitespace characters.'))
+    return errors
+
+
+def file_tab_character(source, properties):
+    if not is_java_file_checked(properties):
+        return []
+    each_line = properties.get('eachLine', 'false').lower() == 'true'
+    errors = []
+    for line_number, line in enumerate(source.lines, start=1):
+        if '\t' in line:
+            if each_line:
+                errors.append(((line_number, line.index('\t') + 1), 'Line contains a tab character.'))
+            else:
+                errors.append(((line_number, line.index('\t') + 1), 'File contains tab characters (this is the first instance).'))
+                break
+    return errors
+
+
+def newline_at_end_of_file(source, properties):
+    if not is_java_file_checked(properties) or len(source.content) == 0:
+        return []
+    line_separator = properties.get('lineSeparator', 'lf_cr_crlf').lower()
+    if line_separator == 'lf_cr_crlf':
+        valid = source.content.endswith('\n') or source.content.endswith('\r')
+    elif line_separator == 'lf':
+        valid = source.content.endswith('\n')
+    elif line_separator == 'crlf':
+        valid = source.content.endswith('\r\n')
+    elif line_separator == 'cr':
+        valid = source.content.endswith('\r')
+    else:
+        return []
+    if valid:
+        return []
+    return [((0, 0), 'File does not end with a newline.')]
+
+
+def line_length(source, properties):
+    if not is_java_file_checked(properties):
+        return []
+    maximum = int(properties.get('max', '80'))
+    tab_width = int(properties.get('tabWidth', '8'))
+    try:
+        ignore_pattern = re.compile(properties.get('ignorePattern', '^$'))
+    except re.error:
+        return []
+    errors = []
+    for line_number, line in enumerate(source.lines, start=1):
+        if re.match(r'^(package|import) .*', line) or ignore_pattern.search(line):
+            continue
+        length = len(line.expandtabs(tab_width).encode('utf-16-le')) // 2
+        if length > maximum:
+            errors.append(((line_number, 0), f'Line is longer than {maximum} characters (found {length}).'))
+    return errors
+
+
+def is_java_file_checked(properties):
+    if 'fileExtensions' not in properties:
+        return True
+    extensions = [ extension.strip().lstrip('.') for extension in properties['fileExtensions'].split(',') ]
+    return 'java' in extensions or extensions == ['']
+
+
+_RULES = {
+    'ParenPad': (_WHITESPACE_PACKAGE, paren_pad),
+    'MethodParamPad': (_WHITESPACE_PACKAGE, method_param_pad),
+    'NoWhitespaceBefore': (_WHITESPACE_PACKAGE, no_whitespace_before),
+    'NoWhitespaceAfter': (_WHITESPACE_PACKAGE, no_whitespace_after),
+    'WhitespaceAfter': (_WHITESPACE_PACKAGE, whitespace_after),
+    'WhitespaceAround': (_WHITESPACE_PACKAGE, whitespace_around),
+    'SingleSpaceSeparator': (_WHITESPACE_PACKAGE, single_space_separator),
+    'FileTabCharacter': (_WHITESPACE_PACKAGE, file_tab_character),
+    'NewlineAtEndOfFile': (_CHECKS_PACKAGE, newline_at_end_of_file),
+    'LineLength': (_SIZES_PACKAGE, line_length)
+}
+
+
+class Module:
+    def __init__(self, module_type, properties, severity):
+        self.type = module_type
+        self.properties = properties
+        self.severity = severity
+        package, self.rule = _RULES[module_type]
+        # like XMLLogger, the id replaces the source when it is set
+        self.source = properties.get('id', f'{package}.{module_type}Check')
+
+    def validate(self, source):
+        errors = []
+        for position, message in self.rule(source, self.properties):
+            if not isinstance(position, tuple):
+                position = (position.position[0], source.index(position) + 1)
+            error = {
+                'line': str(position[0]),
+                'severity': self.severity,
+                'message': message,
+                'source': self.source
+            }
+            if position[1] > 0:
+                error['column'] = str(position[1])
+            errors.append(error)
+        return errors
+
+
+class Prevalidator:
+    """
+    Validates sources against the modules of a checkstyle.xml that have a python rule
+    """
+    def __init__(self, checkstyle_file_path, checkstyle_jar=None):
+        """
+        :param checkstyle_jar: the jar the config is run with, the version of the default tokens if None
+        """
+        self.modules = []
+        self.has_filters = False
+        version = get_jar_version(checkstyle_jar) if checkstyle_jar else None
+        self.default_tokens = version is None or version >= _DEFAULT_TOKENS_VERSION
+        root = ET.parse(checkstyle_file_path).getroot()
+        self.load_modules(root, 'error', {})
+
+    def load_modules(self, element, severity, inherited_properties):
+        properties = {
+            property.attrib['name']:property.attrib.get('value', '')
+            for property in element.findall('property')
+        }
+        severity = properties.get('severity', severity)
+        module_type = checkstyle_source_to_error_type(element.attrib.get('name', ''))
+        # the filters can hide a violation depending on the path, an xpath or comments of any format
+        if 'Filter' in module_type:
+            self.has_filters = True
+        if 'tabWidth' in properties:
+            inherited_properties = dict(inherited_properties, tabWidth=properties['tabWidth'])
+        # the default tokens of an older jar are unknown
+        uses_default_tokens = module_type in _DEFAULT_TOKENS_RULES and 'tokens' not in properties
+        if module_type in _RULES and severity != 'ignore' and (self.default_tokens or not uses_default_tokens):
+            self.modules.append(Module(module_type, dict(inherited_properties, **properties), severity))
+        for child in element.findall('module'):
+            self.load_modules(child, severity, inherited_properties)
+
+    def is_supported(self, content):
+        """
+        Configs with filters and sources with unicode escapes or old mac line endings are not validated
+        """
+        if self.has_filters:
+            return False
+        if '\\u' in content:
+            return False
+        if '\r' in content.replace('\r\n', ''):
+            return False
+        return True
+
+    def validate(self, content):
+        """
+        :return: the list of the violations found, with the same attributes as the Checkstyle errors
+        """
+        if not self.is_supported(content):
+            return []
+        try:
+            source = Source(content)
+        except Exception:
+            return []
+        errors = []
+        for module in self.modules:
+            errors += module.validate(source)
+        return errors
+
+    def count_targeted(self, content):
+        return len(filter_targeted_error(self.validate(content)))
+
+
+def get_jar_version(checkstyle_jar):
+    """
+    The version of a Checkstyle jar (checkstyle-8.10.1-all.jar: (8, 10, 1)), None if unknown
+    """
+    match = re.match(r'checkstyle-(\d+(\.\d+)*)', os.path.basename(checkstyle_jar))
+    if match is None:
+        return None
+    return tuple([ int(number) for number in match.group(1).split('.') ])
+
+
+_prevalidators = {}
+
+def get_prevalidator(checkstyle_file_path, checkstyle_jar=None):
+    """
+    Get the prevalidator of a checkstyle.xml and a jar, parsed only once
+    """
+    key = (checkstyle_file_path, os.path.basename(checkstyle_jar) if checkstyle_jar else None)
+    if key not in _prevalidators:
+        _prevalidators[key] = Prevalidator(checkstyle_file_path, checkstyle_jar)
+    return _prevalidators[key]
+
+
+def agreement(project_name, checkstyle_jar):
+    """
+    Compare the prevalidator with Checkstyle on the real error dataset of a project.
+    A disagreement is a violation found by the prevalidator and not by Checkstyle.
+    """
+    import checkstyle
+    dataset_dir = get_real_dataset_dir(project_name)
+    checkstyle_file_path = os.path.join(dataset_dir, 'checkstyle.xml')
+    prevalidator = Prevalidator(checkstyle_file_path, checkstyle_jar)
+    checkstyle_result, _ = checkstyle.check(checkstyle_file_path, dataset_dir, checkstyle_jar, only_targeted=True, only_java=True)
+    stats = {}
+    disagreements = []
+    for file_path, result in checkstyle_result.items():
+        expected = set([ (error['line'], checkstyle_source_to_error_type(error['source'])) for error in result['errors'] ])
+        for error in filter_targeted_error(prevalidator.validate(open_file(file_path))):
+            error_type = checkstyle_source_to_error_type(error['source'])
+            if error_type not in stats:
+                stats[error_type] = { 'agree': 0, 'disagree': 0 }
+            if (error['line'], error_type) in expected:
+                stats[error_type]['agree'] += 1
+            else:
+                stats[error_type]['disagree'] += 1
+                disagreements.append((file_path, error))
+    return stats, disagreements
+
+
+if __name__ == "__main__":
+    if sys.argv[1] == "validate":
+        json_pp(Prevalidator(sys.argv[2]).validate(open_file(sys.argv[3])))
+    elif sys.argv[1] == "agreement":
+        total_disagreements = 0
+        for project_name in sys.argv[2:]:
+            dataset_info = open_json(os.path.join(get_real_dataset_dir(project_name), 'info.json'))
+            stats, disagreements = agreement(project_name, dataset_info['checkstyle_jar'])
+            print(project_name)
+            json_pp(stats)
+            for file_path, error in disagreements:
+                print(f'{file_path}:{error["line"]} {error["message"]} ({error["source"]})')
+            total_disagreements += len(disagreements)
+        sys.exit(1 if total_disagreements > 0 else 0)
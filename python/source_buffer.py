@@ -0,0 +1,69 @@
+# -*- coding: utf-8 -*-
+
+import bisect
+import re
+
+_NEW_LINE_RE = re.compile('\n')
+
+class SourceBuffer:
+    """
+    A source and the offsets of the starts of its lines, to go from line numbers to
+    character offsets without joining the lines before them.
+    The lines are the ones of readlines: each line ends with its '\\n', except maybe the last one.
+    The lines and columns are 1-based, as in javalang and Checkstyle.
+    """
+    def __init__(self, text):
+        self.text = text
+        self.line_starts = [0] + [ match.end() for match in _NEW_LINE_RE.finditer(text) ]
+        if len(self.line_starts) > 1 and self.line_starts[-1] == len(text):
+            # no empty last line, as readlines
+            self.line_starts.pop()
+        if len(text) == 0:
+            self.line_starts = []
+
+    @staticmethod
+    def from_file(file_path):
+        with open(file_path) as f:
+            return SourceBuffer(f.read())
+
+    def __len__(self):
+        return len(self.line_starts)
+
+    def get_line_start(self, index):
+        """
+        Offset of the line at index (0-based), len(text) after the last line
+        """
+        if index < len(self.line_starts):
+            return self.line_starts[index]
+        return len(self.text)
+
+    def get_lines_span(self, start=None, end=None):
+        """
+        (from, to) offsets of the lines lines[start:end], with the slice semantic of python
+        """
+        start, end, _ = slice(start, end).indices(len(self.line_starts))
+        if start >= end:
+            return (0, 0)
+        return (self.get_line_start(start), self.get_line_start(end))
+
+    def get_lines(self, start=None, end=None):
+        """
+        Same as ''.join(lines[start:end])
+        """
+        from_char, to_char = self.get_lines_span(start, end)
+        return self.text[from_char:to_char]
+
+    def get_offset(self, line, column):
+        """
+        Same as len(''.join(lines[:line - 1])) + column - 1
+        """
+        return self.get_lines_span(None, line - 1)[1] + column - 1
+
+    def get_position(self, offset):
+        """
+        (line, column) of the character at offset, (1, 1) for an empty text
+        """
+        if len(self.line_starts) == 0:
+            return (1, offset + 1)
+        line = bisect.bisect_right(self.line_starts, offset)
+        return (line, offset - self.line_starts[line - 1] + 1)
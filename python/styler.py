@@ -7,25 +7,54 @@ import synthetic_error_generator
 import tokenizer
 import ml
 import checkstyle
+import prevalidator
 import gotify
 
 open_nmt_dir = os.path.join(os.path.dirname(__file__), 'OpenNMT-py')
 
 def tokenize_errors(file_path, errors):
-    inputs = []
     for error in errors:
         error['type'] = checkstyle_source_to_error_type(error['source'])
-        if is_error_targeted(error):
-            tokenized_file, info = tokenizer.tokenize_file_to_repair(file_path, error)
-            inputs += [ (" ".join(tokenized_file), info) ]
-    return inputs
+    targeted_errors = [ error for error in errors if is_error_targeted(error) ]
+    return [
+        (" ".join(tokenized_file), info)
+        for tokenized_file, info in tokenizer.tokenize_file_to_repair_errors(file_path, targeted_errors)
+    ]
 
 def de_tokenize(original_file_path, info):
     pass
 
+def get_done_marker(path):
+    """
+    The marker written once the step producing the artifact at path succeeded
+    """
+    return f'{path}.done'
+
+def is_shared_artifact_done(path):
+    """
+    With shared artifacts, a step is skipped when a project with an equivalent
+    checkstyle.xml and jar already completed it (see mark_artifact_done).
+    Otherwise the marker of a previous run is removed, the step runs again
+    """
+    marker = get_done_marker(path)
+    if is_artifact_sharing_enabled() and os.path.exists(marker):
+        logger.debug(f'{marker} exists, the step is skipped')
+        return True
+    clear_artifact_done(path)
+    return False
+
+def mark_artifact_done(path):
+    save_file_in_path(get_done_marker(path), datetime.now().isoformat())
+
+def clear_artifact_done(path):
+    if os.path.exists(get_done_marker(path)):
+        os.remove(get_done_marker(path))
+
 def run_preprocess(project, protocol):
     tokenized_dir = get_tokenized_dir_by_protocol(project, protocol)
     preprocessed_dir = get_preprocessed_dir_by_protocol(project, protocol)
+    if is_shared_artifact_done(f'{preprocessed_dir}/preprocessing'):
+        return None
     create_dir(preprocessed_dir)
 
     preprocess_script = os.path.join(open_nmt_dir, 'preprocess.py')
@@ -44,12 +73,17 @@ def run_preprocess(project, protocol):
 
     process = subprocess.Popen(cmd.split(" "), stdout=subprocess.PIPE)
     output = process.communicate()[0]
+    if process.returncode == 0:
+        mark_artifact_done(f'{preprocessed_dir}/preprocessing')
 
     return output
 
 def run_train(project, protocol, global_attention, layers, rnn_size, word_vec_size, gpu=True):
     preprocessed_dir = get_preprocessed_dir_by_protocol(project, protocol)
     model_dir = get_model_dir(project)
+    model_path = f'{model_dir}/{protocol}-{global_attention}-{layers}-{rnn_size}-{word_vec_size}-model'
+    if is_shared_artifact_done(model_path):
+        return None
 
     train_script = os.path.join(open_nmt_dir, 'train.py')
     options = [
@@ -69,7 +103,7 @@ def run_train(project, protocol, global_attention, layers, rnn_size, word_vec_si
         '-bridge',
         '-train_steps 20000',
         '-save_checkpoint_steps 20000',
-        f'-save_model {model_dir}/{protocol}-{global_attention}-{layers}-{rnn_size}-{word_vec_size}-model'
+        f'-save_model {model_path}'
     ]
     if gpu:
         options.append('-gpu_ranks 0')
@@ -77,6 +111,8 @@ def run_train(project, protocol, global_attention, layers, rnn_size, word_vec_si
 
     process = subprocess.Popen(cmd.split(" "), stdout=subprocess.PIPE)
     output = process.communicate()[0]
+    if process.returncode == 0:
+        mark_artifact_done(model_path)
 
     return output
 
@@ -173,7 +209,7 @@ def create_corpus(dir, name, checkstyle_dir, checkstyle_jar):
 def get_batch_results(checkstyle_results, n_batch=5):
     return {
         batch:{
-            file.split('/')[-2]:len(result['errors'])
+            file.split('/')[-2]:checkstyle.count_file_errors(result)
             for file, result in checkstyle_results.items()
             if f'batch_{batch}' == file.split('/')[-3]
         }
@@ -210,6 +246,7 @@ def repair_files(dir_repaired_files_by_protocol, dir_files_to_repair, model_name
 
         # Init of the translator
         translate = gen_translator(model_name, protocol, batch_size=5)
+        checkstyle_prevalidator = prevalidator.get_prevalidator(checkstyle_rules, checkstyle_jar)
 
         #list_of_fileids = []
         for folder_id in tqdm(list_of_fileids):
@@ -218,14 +255,27 @@ def repair_files(dir_repaired_files_by_protocol, dir_files_to_repair, model_name
             metadata_path = f'{dir_files_to_repair}/{folder_id}/metadata.json'
             for error_id, error in enumerate(tokenize_errors(file_path, open_json(metadata_path)['errors'])):
                 tokenized_errors, info = error
-                for proposal_id, translation in enumerate(translate(tokenized_errors)):
-                    de_tokenized_translation = de_tokenize(file_path, info, translation, only_formatting=only_formatting)
-                    folder = f'{target}/batch_{proposal_id}/{int(folder_id) + error_id * number_of_files}'
+                proposals = [
+                    de_tokenize(file_path, info, translation, only_formatting=only_formatting)
+                    for translation in translate(tokenized_errors)
+                ]
+                # the proposals with a certain violation go to the waste, unless all of them have one
+                rejected = [ checkstyle_prevalidator.count_targeted(proposal) > 0 for proposal in proposals ]
+                if all(rejected):
+                    rejected = [ False for _ in proposals ]
+                for proposal_id, de_tokenized_translation in enumerate(proposals):
+                    folder = f'{waste if rejected[proposal_id] else target}/batch_{proposal_id}/{int(folder_id) + error_id * number_of_files}'
                     create_dir(folder)
                     save_file(folder, file_path.split('/')[-1], de_tokenized_translation)
 
         move_parse_exception_files(target, waste)
-    checkstyle_result, number_of_errors = checkstyle.check(checkstyle_rules, target, checkstyle_jar, only_targeted=True)
+    # only the number of errors (0, 1 or more) matters to select the proposals,
+    # the big files are only validated around their repair
+    changes = {
+        file:glob.glob(f'{dir_files_to_repair}/{int(file.split("/")[-2]) % number_of_files}/*.java')[0]
+        for file in checkstyle.list_files(target)
+    }
+    checkstyle_result, number_of_errors = checkstyle.check_counts_by_window(checkstyle_rules, changes, checkstyle_jar, threshold=2)
     if checkstyle_result is None:
         return None
     res = reverse_collection(get_batch_results(checkstyle_result))
@@ -316,12 +366,14 @@ def gen_training_data(project_path, checkstyle_file_path, checkstyle_jar, projec
             gotify.notify('[data generation]', f'Start {protocol} on {project_name}')
             synthetic_dataset_dir_by_protocol = f'{get_synthetic_dataset_dir_by_protocol(project_name, protocol)}'
             synthetic_error_generator.gen_dataset(corpus, share, core_config['DATASHARE'].getint('number_of_synthetic_errors'), synthetic_dataset_dir_by_protocol, checkstyle_jar, protocol=protocol)
+            mark_artifact_done(synthetic_dataset_dir_by_protocol)
             gotify.notify('[data generation]', f'Done {protocol} on {project_name}')
     except:
         logger.exception("Something whent wrong during the generation training data")
         #delete_dir_if_exists(get_corpus_dir(project_name))
 
         for protocol in protocols:
+            clear_artifact_done(get_synthetic_dataset_dir_by_protocol(project_name, protocol))
             delete_dir_if_exists(f'{get_synthetic_dataset_dir_by_protocol(project_name, protocol)}')
             delete_dir_if_exists(get_tokenized_dir_by_protocol(project_name, protocol))
         gotify.notify('[error][data generation]', project_name)
@@ -372,6 +424,9 @@ def main(args):
         errors_dataset_dir = get_real_dataset_dir(errors_dataset_name)
         dataset_info = open_json(os.path.join(errors_dataset_dir, 'info.json'))
 
+        if all([ is_shared_artifact_done(get_synthetic_dataset_dir_by_protocol(errors_dataset_name, protocol)) for protocol in protocols ]):
+            return
+
         checkstyle_jar = dataset_info["checkstyle_jar"]
 
         (repo_user, repo_name) = dataset_info['repo_url'].split('/')[-2:]
@@ -397,8 +452,11 @@ def main(args):
 
         project_name = args[2]
         for protocol in protocols:
+            if is_shared_artifact_done(get_tokenized_dir_by_protocol(project_name, protocol)):
+                continue
             synthetic_dataset_dir_by_protocol = f'{get_synthetic_dataset_dir_by_protocol(project_name, protocol)}'
             ml.gen_IO(synthetic_dataset_dir_by_protocol, get_tokenized_dir_by_protocol(project_name, protocol), only_formatting=True)
+            mark_artifact_done(get_tokenized_dir_by_protocol(project_name, protocol))
 
         time_elapsed = datetime.now() - start_time
         logger.debug('Time elapsed (hh:mm:ss.ms) {}'.format(time_elapsed))
@@ -9,8 +9,10 @@ import checkstyle
 import random
 import intervals as I
 import pandas as pd
-from collections import Counter
+from collections import Counter, deque
 import csv
+import itertools
+import multiprocessing
 
 BATCH_SIZE = 500
 
@@ -18,9 +20,9 @@ def word_counter_to_csv(counter):
     # field names
     fields = ['token_1', 'ws', 'token_2', 'count']
 
-    # data rows of csv file
+    # data rows of csv file, the three grams of tokenize_and_count are ids
     rows = [
-        [*three_gram, c]
+        [*decode_stream(three_gram), c]
         for three_gram, c in counter.items()
     ]
     filename = "three_grams.csv"
@@ -34,15 +36,14 @@ def word_counter_to_csv(counter):
 
 
 def tokenize_and_count(file_path):
-    tokens = tokenizer.tokenize_with_white_space(open_file(file_path))
-    tokenized_file = []
-    for token, ws in zip(map(get_token_value, tokens[1]), map(get_space_value, tokens[0])):
-        tokenized_file += [token, ws]
-    tokenized_file += ['EOF']
-    three_grams = []
-    for i in range(0, len(tokenized_file) - 2, 2):
-        three_grams.append(tuple(tokenized_file[i: i+3]))
-    counter = Counter(three_grams)
+    """
+    :return: the counter of the (token, white space, token) three grams of ids of token_utils
+    """
+    white_space, tokens = tokenizer.tokenize_with_white_space(open_file(file_path))
+    token_ids = encode_tokens(tokens)
+    token_ids.append(token_vocabulary.get_id('EOF'))
+    white_space_ids = encode_white_spaces(white_space)
+    counter = Counter(zip(token_ids, white_space_ids, token_ids[1:]))
     return counter
 
 
@@ -78,8 +79,8 @@ def list_alternatives_with_probability(token_a, ws, token_b):
 tokenizer_relative = tokenizer.Tokenizer()
 tokenizer_absolute = tokenizer.Tokenizer(relative=False)
 
-def pick_random(alternatives):
-    random_number = random.random()
+def pick_random(alternatives, generator=random):
+    random_number = generator.random()
     probability_sum = 0
     for alternative, probability in alternatives.items():
         probability_sum += probability
@@ -88,7 +89,7 @@ def pick_random(alternatives):
     return None
 
 
-def modify_source_three_grams(source, n_insertion=1):
+def modify_source_three_grams(source, n_insertion=1, generator=random):
     lines = source.split("\n")
     nb_tab = 0
     nb_space = 0
@@ -104,9 +105,10 @@ def modify_source_three_grams(source, n_insertion=1):
     tokenizer_absolute.tabulation = nb_tab >= nb_space
 
     tokenized_source = tokenizer_relative.tokenize(source)
+    # the cached tokenization is frozen, apply_white_space copies its white spaces
     tokenized_source_absolute = tokenizer_absolute.tokenize(source)
     insertion_spots = list(range(len(tokenized_source.tokens)-1))
-    random.shuffle(insertion_spots)
+    generator.shuffle(insertion_spots)
     modification = None
     for spot in insertion_spots:
         token_a = tokenized_source.tokens[spot]
@@ -118,7 +120,7 @@ def modify_source_three_grams(source, n_insertion=1):
                 get_space_value(ws),
                 get_token_value(token_b)
             )
-            alternative_selected = pick_random(alternatives)
+            alternative_selected = pick_random(alternatives, generator)
             alternative_selected_tuple = whitespace_token_to_tuple(alternative_selected)
             new_ws = tokenized_source_absolute.white_spaces[spot]
             if alternative_selected_tuple[0] == 0:
@@ -130,7 +132,7 @@ def modify_source_three_grams(source, n_insertion=1):
             else:
                 new_ws = (alternative_selected_tuple[0], new_ws[1] + (alternative_selected_tuple[1] - ws[1]))
             if new_ws[1]>=0:
-                tokenized_source_absolute.white_spaces[spot] = new_ws
+                tokenized_source_absolute.apply_white_space(spot, new_ws)
                 modification = {
                     'token_a': get_token_value(token_a),
                     'token_b': get_token_value(token_b),
@@ -169,7 +171,7 @@ class InsertionException(Exception):
     pass
 
 
-def gen_ugly(file_path, output_dir, modification_number = (1,0,0,0,0)):
+def gen_ugly(file_path, output_dir, modification_number = (1,0,0,0,0), generator=random):
     """
     Gen an ugly vertsion of of .java file
     """
@@ -177,7 +179,7 @@ def gen_ugly(file_path, output_dir, modification_number = (1,0,0,0,0)):
         file_lines = f.readlines()
     file_content = "".join(file_lines)
 
-    output, modifications = gen_ugly_from_source(file_content, modification_number=modification_number)
+    output, modifications = gen_ugly_from_source(file_content, modification_number=modification_number, generator=generator)
 
     if not os.path.exists(output_dir):
         os.makedirs(output_dir)
@@ -190,9 +192,10 @@ def gen_ugly(file_path, output_dir, modification_number = (1,0,0,0,0)):
     return modifications
 
 
-def gen_ugly_from_source(file_content, modification_number = (1,0,0,0,0)):
+def gen_ugly_from_source(file_content, modification_number = (1,0,0,0,0), generator=random):
     """
     Gen an ugly vertsion of of .java file
+    :param generator: the random generator of the modifications, the random module by default
     """
     insertions_sample_size_space = modification_number[0]
     insertions_sample_size_tab = modification_number[1]
@@ -204,20 +207,20 @@ def gen_ugly_from_source(file_content, modification_number = (1,0,0,0,0)):
     # deletions_sample_size = modification_number - insertions_sample_size
     file_lines = [ line + '\n' for line in file_content.split('\n') ]
 
-    tokens = javalang_tokenizer.tokenize(file_content)
-    tokens = [ t for t in tokens]
+    # the tokens without the comments, as javalang_tokenizer.tokenize(file_content) gives them
+    tokens = [ t for t in tokenizer.tokenize_cached(file_content)[1] if not isinstance(t, javalang_tokenizer.Comment) ]
     # print("\n".join([ str(t) for t in tokens]))
 
 
     # Take a sample of locations suitable for insertions
-    insertions_sample = random.sample( tokens, min(insertions_sample_size, len(tokens)) )
+    insertions_sample = generator.sample( tokens, min(insertions_sample_size, len(tokens)) )
 
     insertions = dict();
 
     insertions_chars = ([' '] * insertions_sample_size_space);
     insertions_chars.extend(['\t'] * insertions_sample_size_tab)
     insertions_chars.extend(['\n'] * insertions_sample_size_newline)
-    random.shuffle(insertions_chars)
+    generator.shuffle(insertions_chars)
 
     for element, char in zip(insertions_sample, insertions_chars):
         insertions[element.position] = char
@@ -241,7 +244,7 @@ def gen_ugly_from_source(file_content, modification_number = (1,0,0,0,0)):
     deletions_spots = list(set(deletions_spots))
 
     # Take a sample of locations suitable for deletions
-    deletions_sample = random.sample( deletions_spots, min(deletions_sample_size, len(deletions_spots)) )
+    deletions_sample = generator.sample( deletions_spots, min(deletions_sample_size, len(deletions_spots)) )
 
     deletions = dict()
     for deletion_intervals in deletions_spots:
@@ -276,9 +279,9 @@ def gen_ugly_from_source(file_content, modification_number = (1,0,0,0,0)):
 
     deletions = []
     if (' ' in deletions_spots_chars):
-        deletions.extend(random.sample(deletions_spots_chars[' '], deletions_sample_size_space))
+        deletions.extend(generator.sample(deletions_spots_chars[' '], deletions_sample_size_space))
     if ('\n' in deletions_spots_chars):
-        deletions.extend(random.sample(deletions_spots_chars['\n'], deletions_sample_size_newline))
+        deletions.extend(generator.sample(deletions_spots_chars['\n'], deletions_sample_size_newline))
 
     # print(insertions)
     # print(deletions)
@@ -299,38 +302,47 @@ def gen_ugly_from_source(file_content, modification_number = (1,0,0,0,0)):
         line_num = line_num + 1
     return output, tuple(set(deletions) | set(insertions.keys()))
 
-def modify_source_random(source):
+def modify_source_random(source, generator=random):
     if not check_source_well_formed(source):
         raise InsertionException
+    spaces_original, tokens_original = tokenizer.tokenize_cached(source)
     while True:
-        injection_operation = random.choice(injection_operator_pool)
-        ugly_content, modification = gen_ugly_from_source(source, modification_number=injection_operator_types[injection_operation])
+        injection_operation = generator.choice(injection_operator_pool)
+        ugly_content, modification = gen_ugly_from_source(source, modification_number=injection_operator_types[injection_operation], generator=generator)
+        # the same tokens with other white spaces, the errored source does not need to be lexed and parsed
+        if tokenizer.is_white_space_edit(source, ugly_content):
+            return ugly_content, (modification, injection_operation)
         if not check_source_well_formed(ugly_content):
             continue
-        spaces_original, tokens_original = tokenizer.tokenize_with_white_space(source)
-        spaces_errored, tokens_errored = tokenizer.tokenize_with_white_space(ugly_content)
+        spaces_errored, tokens_errored = tokenizer.tokenize_cached(ugly_content)
         if len(tokens_original) != len(tokens_errored):
             continue
         return ugly_content, (modification, injection_operation)
 
 
-def modify_source(source, protocol='random'):
+def modify_source(source, protocol='random', generator=random):
     if protocol == 'random':
-        return modify_source_random(source)
+        return modify_source_random(source, generator)
     elif protocol == 'three_grams':
-        return modify_source_three_grams(source)
-    return modify_source_random(source)
+        return modify_source_three_grams(source, generator=generator)
+    return modify_source_random(source, generator)
 
 
 class Batch:
-    def __init__(self, files_dir, checkstyle_dir, checkstyle_jar, batch_id=None, protocol='random'):
+    def __init__(self, files_dir, checkstyle_dir, checkstyle_jar, batch_id=None, protocol='random', seed=None):
+        """
+        :param seed: the seed of the choice of the files and of their modifications, not reproducible by default
+        """
         self.checkstyle_dir = checkstyle_dir
         self.checkstyle_jar = checkstyle_jar
         if batch_id == None:
             self.batch_id = uuid.uuid4().hex
         else:
             self.batch_id = batch_id
-        self.batch_files = [random.choice(files_dir) for _ in range(BATCH_SIZE)]
+        self.seed = seed
+        # its own generator, the global state of the random module is left untouched
+        self.generator = random.Random(seed) if seed is not None else random
+        self.batch_files = [self.generator.choice(files_dir) for _ in range(BATCH_SIZE)]
         self.project_name = checkstyle_dir.split('/')[-3]
         self.batch_dir = f'{get_tmp_batches_dir(self.project_name)}/{self.batch_id}'
         self.protocol = protocol
@@ -342,7 +354,7 @@ class Batch:
             file_name = file_dir.split('/')[-1]
             original_source = open_file(file_dir)
             try:
-                modified_source, modification = modify_source(original_source, protocol=self.protocol)    
+                modified_source, modification = modify_source(original_source, protocol=self.protocol, generator=self.generator)    
                 modification_folder = os.path.join(self.batch_dir, str(index))
                 create_dir(modification_folder)
                 modified_file_dir = save_file(modification_folder, file_name, modified_source)
@@ -362,18 +374,21 @@ class Batch:
             except Exception as err:
                 print(err)
                 continue
-        self.checkstyle_result, _ = checkstyle.check(
+        # a valid sample has exactly one error, the errors are only counted up to two
+        self.checkstyle_result, _ = checkstyle.check_counts(
             self.checkstyle_dir,
             self.batch_dir,
             self.checkstyle_jar,
-            only_java=True,
-            only_targeted=True
+            threshold=2
         )
         if self.checkstyle_result is not None:
             for file_dir, res in self.checkstyle_result.items():
                 index = int(file_dir.split('/')[-2])
-                self.batch_injections[index]['errors'] = res['errors']
-                save_json(self.batch_injections[index]['dir'], 'errors.json', res['errors'])
+                self.batch_injections[index]['error_count'] = res['count']
+                if res['count'] <= 1:
+                    errors = [ res['first'] ] if res['count'] == 1 else []
+                    self.batch_injections[index]['errors'] = errors
+                    save_json(self.batch_injections[index]['dir'], 'errors.json', errors)
 
             self.batch_information = {
                 'batch_id': self.batch_id,
@@ -387,32 +402,93 @@ class Batch:
         shutil.rmtree(self.batch_dir)
 
 
-def gen_errors(files_dir, checkstyle_dir, checkstyle_jar, target, number_of_errors, protocol='random'):
+def gen_batch(job):
+    """
+    Generates and checks one batch, in a worker of gen_batches
+    :return: (batch dir, the valid errors of the batch)
+    """
+    files_dir, checkstyle_dir, checkstyle_jar, protocol, batch_id, seed = job
+    batch = Batch(files_dir, checkstyle_dir, checkstyle_jar, batch_id=batch_id, protocol=protocol, seed=seed)
+    try:
+        batch_res = batch.gen()
+    except KeyboardInterrupt:
+        raise KeyboardInterrupt
+    except UnicodeDecodeError:
+        return batch.batch_dir, []
+    except: # UnicodeEncodeError
+        logger.exception("Something went whrong")
+        return batch.batch_dir, []
+    if batch_res is None:
+        return batch.batch_dir, []
+    batch_valid_errors = [
+        info
+        for info in batch_res['injection_report'].values()
+        if 'errors' in info and len(info['errors']) == 1 and is_error_targeted(info['errors'][0])
+    ]
+    return batch.batch_dir, batch_valid_errors
+
+def gen_batches(files_dir, checkstyle_dir, checkstyle_jar, protocol, workers, seed):
+    """
+    The results of gen_batch in the order of the batches, generated by a pool of processes when workers > 1.
+    With a seed, the batch at index is the one of the seed f'{seed}_{index}', whatever the number of workers.
+    The batch dirs are unique to the run, a dir left by another run is never reused
+    :return: generator of (batch dir, valid errors)
+    """
+    run_id = uuid.uuid4().hex
+    def get_job(index):
+        return (files_dir, checkstyle_dir, checkstyle_jar, protocol, f'{run_id}_{index}', None if seed is None else f'{seed}_{index}')
+    if workers <= 1:
+        for index in itertools.count():
+            yield gen_batch(get_job(index))
+        return
+    pool = multiprocessing.Pool(workers)
+    pending = deque()
+    indexes = itertools.count()
+    try:
+        while True:
+            # a few batches ahead, the batches are consumed in order
+            while len(pending) < 2 * workers:
+                job = get_job(next(indexes))
+                pending.append((job, pool.apply_async(gen_batch, (job,))))
+            _, result = pending.popleft()
+            yield result.get()
+    finally:
+        # the quota is met, the batches still running are not needed
+        pool.terminate()
+        pool.join()
+        project_name = checkstyle_dir.split('/')[-3]
+        for job, _ in pending:
+            shutil.rmtree(f'{get_tmp_batches_dir(project_name)}/{job[4]}', ignore_errors=True)
+
+def get_seed(seed=None):
+    """
+    The seed of the generation, [DATASHARE] seed by default, None when it is empty
+    """
+    if seed is None:
+        seed = core_config.get('DATASHARE', 'seed', fallback='') or None
+    return seed
+
+def gen_errors(files_dir, checkstyle_dir, checkstyle_jar, target, number_of_errors, protocol='random', workers=None, seed=None):
+    """
+    :param workers: the processes generating the batches, [DATASHARE] workers by default
+    :param seed: the seed of the batches and of the selection of the errors, [DATASHARE] seed by default
+    (not reproducible when it is empty)
+    """
+    if workers is None:
+        workers = core_config.getint('DATASHARE', 'workers', fallback=1)
+    seed = get_seed(seed)
     valid_errors = []
-    batches = []
+    batch_dirs = []
     with tqdm(total=number_of_errors) as pbar:
-        while len(valid_errors) < number_of_errors:
-            batch = Batch(files_dir, checkstyle_dir, checkstyle_jar, protocol=protocol)
-            batches.append(batch)
-            try:
-                batch_res = batch.gen()
-            except KeyboardInterrupt:
-                raise KeyboardInterrupt
-            except UnicodeDecodeError:
-                continue
-            except: # UnicodeEncodeError
-                logger.exception("Something went whrong")
-                continue
-            if batch_res is None:
-                continue
-            batch_valid_errors = [
-                info
-                for info in batch_res['injection_report'].values() 
-                if 'errors' in info and len(info['errors']) == 1
-            ]
+        batches = gen_batches(files_dir, checkstyle_dir, checkstyle_jar, protocol, workers, seed)
+        for batch_dir, batch_valid_errors in batches:
+            batch_dirs.append(batch_dir)
             valid_errors += batch_valid_errors
             pbar.update(len(batch_valid_errors))
-    selected_errors = random.sample(valid_errors, number_of_errors)
+            if len(valid_errors) >= number_of_errors:
+                break
+        batches.close()
+    selected_errors = (random.Random(seed) if seed is not None else random).sample(valid_errors, number_of_errors)
     for error_id, error_metadata in enumerate(selected_errors):
         new_error_dir = os.path.join(target, str(error_id))
         old_dir = error_metadata['dir']
@@ -426,18 +502,25 @@ def gen_errors(files_dir, checkstyle_dir, checkstyle_jar, target, number_of_erro
         shutil.copy(error_metadata['orig'], os.path.join(new_error_dir, orig_file_name))
         
         save_json(new_error_dir, 'metadata.json', error_metadata)
-    for batch in batches:
-        batch.clean()
+    for batch_dir in batch_dirs:
+        shutil.rmtree(batch_dir)
     return selected_errors
 
 
-def gen_dataset(corpus, share, number_of_synthetic_errors, synthetic_dataset_dir, checkstyle_jar, protocol='random'):
+def gen_dataset(corpus, share, number_of_synthetic_errors, synthetic_dataset_dir, checkstyle_jar, protocol='random', seed=None):
+    """
+    :param seed: the seed of the errors and of the split, see gen_errors
+    """
+    seed = get_seed(seed)
     training_folder_path = os.path.join(synthetic_dataset_dir, 'training')
-    file_list = [file for (_,_,file) in corpus.files.values()]
-    gen_errors(file_list, corpus.checkstyle, checkstyle_jar, training_folder_path, number_of_synthetic_errors, protocol=protocol)
+    # sorted, the batches choose the files by index
+    file_list = sorted([file for (_,_,file) in corpus.files.values()])
+    gen_errors(file_list, corpus.checkstyle, checkstyle_jar, training_folder_path, number_of_synthetic_errors, protocol=protocol, seed=seed)
     
+    generator = random.Random(seed) if seed is not None else random
     error_types_to_errored_files = {}
-    for training_file in list_dir_full_path(training_folder_path):
+    # sorted, the order of the listing is not reproducible
+    for training_file in sorted(list_dir_full_path(training_folder_path)):
         with open(os.path.join(training_file, 'errors.json')) as json_file:
             data = json.load(json_file)
             if data[0]['source'] not in error_types_to_errored_files:
@@ -447,11 +530,11 @@ def gen_dataset(corpus, share, number_of_synthetic_errors, synthetic_dataset_dir
     for subset_name, subset_share in share.items():
         if subset_share > 0:
             create_dir(os.path.join(synthetic_dataset_dir, subset_name))
-    for error_type in error_types_to_errored_files:
+    for error_type in sorted(error_types_to_errored_files):
         errored_files = error_types_to_errored_files[error_type]
         nb_files = len(errored_files)
         logger.debug(f'{error_type}:{nb_files}')
-        random.shuffle(errored_files)
+        generator.shuffle(errored_files)
         c_learning = int(share['learning']*nb_files)
         c_validation = int(share['validation']*nb_files)
         c_testing = int(share['testing']*nb_files)
@@ -1,11 +1,23 @@
 from javalang import tokenizer as javalang_tokenizer
 
+from array import array
+
+# bounds of the white spaces of the precomputed tables, the others are added on the fly
+WHITE_SPACE_MAX_NEW_LINES = 9
+WHITE_SPACE_MAX_SPACES = 64
+
 def is_whitespace_token(token: str) -> bool:
     if ( 'SP' in token or 'NL' in token ) and '_' in token:
         return True
     return False
 
 def whitespace_token_to_tuple(token: str) -> tuple:
+    space = _space_tuples.get(token)
+    if space is not None:
+        return space
+    return parse_whitespace_token(token)
+
+def parse_whitespace_token(token: str) -> tuple:
     spaces: int = 0
     new_line: int = 0
     if 'SP' in token:
@@ -51,6 +63,12 @@ def get_token_value(token):
     return token.__class__.__name__
 
 def get_space_value(space):
+    value = _space_values.get(tuple(space))
+    if value is not None:
+        return value
+    return format_space_value(space)
+
+def format_space_value(space):
     if space[0] == 0:
         return f'{space[1]}_SP'
     else:
@@ -62,3 +80,81 @@ def get_space_value(space):
         else:
             result += f'_{-space[1]}_DD'
         return result
+
+class Vocabulary:
+    """
+    Interned values: each value gets an int id, in the order of their first encoding
+    """
+    def __init__(self, values=()):
+        self.ids = {}
+        self.values = []
+        for value in values:
+            self.get_id(value)
+
+    def __len__(self):
+        return len(self.values)
+
+    def get_id(self, value):
+        id = self.ids.get(value)
+        if id is None:
+            id = len(self.values)
+            self.ids[value] = id
+            self.values.append(value)
+        return id
+
+    def encode(self, values):
+        return array('i', map(self.get_id, values))
+
+    def decode(self, ids):
+        return [ self.values[id] for id in ids ]
+
+# the (new lines, spaces) pairs and their strings, built once
+white_space_vocabulary = Vocabulary(
+    (new_lines, spaces)
+    for new_lines in range(WHITE_SPACE_MAX_NEW_LINES + 1)
+    for spaces in range(-WHITE_SPACE_MAX_SPACES, WHITE_SPACE_MAX_SPACES + 1)
+)
+_space_values = { space: format_space_value(space) for space in white_space_vocabulary.values }
+_space_tuples = { value: parse_whitespace_token(value) for value in _space_values.values() }
+_space_value_list = [ _space_values[space] for space in white_space_vocabulary.values ]
+
+token_vocabulary = Vocabulary()
+
+def encode_tokens(tokens):
+    """
+    :return: the ids of get_token_value of the tokens in token_vocabulary
+    """
+    return token_vocabulary.encode(map(get_token_value, tokens))
+
+def encode_white_spaces(white_spaces):
+    """
+    :return: the ids of the (new lines, spaces) pairs in white_space_vocabulary
+    """
+    return white_space_vocabulary.encode(map(tuple, white_spaces))
+
+def get_space_value_of_id(id):
+    if id >= len(_space_value_list):
+        for space in white_space_vocabulary.values[len(_space_value_list):]:
+            _space_value_list.append(format_space_value(space))
+    return _space_value_list[id]
+
+def encode_stream(tokens, white_spaces):
+    """
+    The token and white space ids interleaved: token, white space, token, white space...
+    """
+    length = min(len(tokens), len(white_spaces))
+    stream = array('i', [0]) * (2 * length)
+    stream[0::2] = encode_tokens(tokens[:length])
+    stream[1::2] = encode_white_spaces(white_spaces[:length])
+    return stream
+
+def decode_stream(stream, start=0):
+    """
+    The strings of the ids of encode_stream, start gives the parity of the first id
+    """
+    token_values = token_vocabulary.values
+    result = [ None ] * len(stream)
+    tokens_start = start % 2
+    result[tokens_start::2] = [ token_values[id] for id in stream[tokens_start::2] ]
+    result[1 - tokens_start::2] = [ get_space_value_of_id(id) for id in stream[1 - tokens_start::2] ]
+    return result
@@ -1,16 +1,175 @@
 from core import *
 from javalang import tokenizer as javalang_tokenizer
 from token_utils import *
+import java_lexer
+from source_buffer import SourceBuffer
+import window_policy
+
+import bisect
+import re
+import hashlib
+import sqlite3
+import threading
+import zlib
+from collections import OrderedDict
+
+class TokenizationCache:
+    """
+    Memoization of tokenize_with_white_space, keyed by the content hash of the source and the options.
+    An in-process LRU tier, and optionally a persistent sqlite tier shared by the processes.
+    The cached results are tuples, the callers get copies or frozen TokenizedSource.
+    """
+    def __init__(self, size, path=None):
+        self.size = size
+        self.path = path
+        self.entries = OrderedDict()
+        self.lock = threading.Lock()
+        self.stats = { 'hits': 0, 'disk_hits': 0, 'misses': 0 }
+        self.connection = None
+        if path is not None:
+            self.connection = sqlite3.connect(path, timeout=60, check_same_thread=False)
+            self.connection.execute('PRAGMA journal_mode=WAL')
+            self.connection.execute('''
+                CREATE TABLE IF NOT EXISTS tokenizations (
+                    key TEXT PRIMARY KEY,
+                    tokenization BLOB
+                )
+            ''')
+            self.connection.commit()
+
+    def get(self, file_content, relative, new_line_at_the_end_of_file, lexer):
+        """
+        :return: (whitespace, tokens) as tuples
+        """
+        key = f'{hashlib.sha1(file_content.encode("utf-8")).hexdigest()}-{int(relative)}{int(new_line_at_the_end_of_file)}-{lexer}'
+        with self.lock:
+            if key in self.entries:
+                self.entries.move_to_end(key)
+                self.stats['hits'] += 1
+                return self.entries[key]
+            row = None
+            if self.connection is not None:
+                row = self.connection.execute('SELECT tokenization FROM tokenizations WHERE key=?', (key,)).fetchone()
+        if row is not None:
+            result = deserialize_tokenization(row[0])
+            self.stats['disk_hits'] += 1
+        else:
+            whitespace, tokens = compute_tokenization(file_content, relative, new_line_at_the_end_of_file, lexer)
+            result = (tuple(whitespace), tuple(tokens))
+            self.stats['misses'] += 1
+            if self.connection is not None:
+                with self.lock:
+                    self.connection.execute('INSERT OR REPLACE INTO tokenizations VALUES (?, ?)', (key, serialize_tokenization(result)))
+                    self.connection.commit()
+        with self.lock:
+            self.entries[key] = result
+            while len(self.entries) > self.size:
+                self.entries.popitem(last=False)
+        return result
+
+def serialize_tokenization(tokenization):
+    """
+    zlib of the json of [whitespace, [[token class, value, line, column]]]
+    """
+    whitespace, tokens = tokenization
+    content = [
+        whitespace,
+        [ [token.__class__.__name__, token.value, token.position[0], token.position[1]] for token in tokens ]
+    ]
+    return zlib.compress(json.dumps(content, separators=(',', ':')).encode('utf-8'))
+
+def deserialize_tokenization(blob):
+    whitespace, tokens = json.loads(zlib.decompress(blob).decode('utf-8'))
+    return (
+        tuple([ tuple(ws) for ws in whitespace ]),
+        tuple([
+            getattr(javalang_tokenizer, name)(value, javalang_tokenizer.Position(line, column))
+            for name, value, line, column in tokens
+        ])
+    )
+
+_tokenization_cache = None
+_tokenization_cache_pid = None
+
+def get_tokenization_cache():
+    """
+    The cache of the process, None if it is disabled ([TOKENIZER] cache_size=0)
+    """
+    global _tokenization_cache, _tokenization_cache_pid
+    size = core_config.getint('TOKENIZER', 'cache_size', fallback=256)
+    if size <= 0:
+        return None
+    if _tokenization_cache is None or _tokenization_cache_pid != os.getpid():
+        path = None
+        if core_config.getboolean('TOKENIZER', 'disk_cache', fallback=False):
+            path = os.path.join(create_dir(get_output_dir()), 'tokenization_cache.sqlite')
+        _tokenization_cache = TokenizationCache(size, path)
+        _tokenization_cache_pid = os.getpid()
+    return _tokenization_cache
+
+def get_tokenization_cache_stats():
+    cache = get_tokenization_cache()
+    return dict(cache.stats) if cache is not None else None
+
+_LEXERS = {
+    'javalang': javalang_tokenizer.tokenize,
+    'regex': java_lexer.tokenize
+}
+
+def get_default_lexer():
+    """
+    The lexer of the tokenizations ([TOKENIZER] lexer), javalang or regex (see java_lexer)
+    """
+    return core_config.get('TOKENIZER', 'lexer', fallback='javalang')
 
-def tokenize_with_white_space(file_content, relative=True, new_line_at_the_end_of_file=True):
+def tokenize_cached(file_content, relative=True, new_line_at_the_end_of_file=True, lexer=None):
+    """
+    Same as tokenize_with_white_space, as tuples that must not be modified
+    """
+    if lexer is None:
+        lexer = get_default_lexer()
+    cache = get_tokenization_cache()
+    if cache is None:
+        whitespace, tokens = compute_tokenization(file_content, relative, new_line_at_the_end_of_file, lexer)
+        return tuple(whitespace), tuple(tokens)
+    return cache.get(file_content, relative, new_line_at_the_end_of_file, lexer)
+
+def tokenize_with_white_space(file_content, relative=True, new_line_at_the_end_of_file=True, lexer=None):
     """
     Tokenize the java source code
     :param file_content: the java source code
     :return: (whitespace, tokens)
     """
-    position_last_line = 1;
-    tokens = javalang_tokenizer.tokenize(file_content, parse_comments=True)
+    whitespace, tokens = tokenize_cached(file_content, relative=relative, new_line_at_the_end_of_file=new_line_at_the_end_of_file, lexer=lexer)
+    return list(whitespace), list(tokens)
+
+def compute_tokenization(file_content, relative=True, new_line_at_the_end_of_file=True, lexer='javalang'):
+    """
+    The tokenization itself, see tokenize_with_white_space
+    """
+    tokens = _LEXERS[lexer](file_content, parse_comments=True)
     tokens = [ t for t in tokens]
+    whitespace = compute_white_space(tokens, relative)
+    if new_line_at_the_end_of_file:
+        whitespace.append((1,0))
+    else:
+        if file_content[-1] == '\n':
+            if file_content[-2] == '\n':
+                whitespace.append((2,0))
+            else:
+                whitespace.append((1,0))
+        else:
+            whitespace.append((0,0))
+    # rewritten = reformat(whitespace, tokens)
+    # print(rewritten)
+    # return rewritten
+    return whitespace, tokens
+
+def compute_white_space(tokens, relative=True, position_last_line=1):
+    """
+    The white spaces between the tokens (without the one after the last token)
+    :param position_last_line: the column the indentation of the first new line is relative to (1 for a file)
+    """
     whitespace = list()
     for index in range(0, len(tokens)-1):
         tokens_position = tokens[index].position;
@@ -29,62 +188,185 @@ def tokenize_with_white_space(file_content, relative=True, new_line_at_the_end_o
                     position_last_line = next_token_position[1]
                 else:
                     whitespace.append(( next_token_position[0] - end_of_token[0] - tokens[index].value.count('\n'), next_token_position[1] - 1))
-    if new_line_at_the_end_of_file:
-        whitespace.append((1,0))
-    else:
-        if file_content[-1] == '\n':
-            if file_content[-2] == '\n':
-                whitespace.append((2,0))
-            else:
-                whitespace.append((1,0))
-        else:
-            whitespace.append((0,0))
-    # rewritten = reformat(whitespace, tokens)
-    # print(rewritten)
-    # return rewritten
-    return whitespace, tokens
+    return whitespace
 
-def tokenize_file_to_repair(file_path, error):
-    spaces, tokens = tokenize_with_white_space(open_file(file_path))
+def tokenize_file_to_repair(file_path, error, windowed=None, policy=None):
+    return tokenize_file_to_repair_errors(file_path, [error], windowed=windowed, policy=policy)[0]
 
-    info = {}
+def tokenize_file_to_repair_errors(file_path, errors, windowed=None, policy=None):
+    """
+    The contexts of tokenize_file_to_repair for several errors of the same file,
+    the file is tokenized once and the tokens are found by binary search on their lines
+    :param windowed: lex only a region around each error (see get_region_repair_context),
+    by default for the files of at least [TOKENIZER] window_min_lines lines (0 never)
+    :param policy: the window of all the errors, by default the one of their type (see window_policy)
+    :return: [(tokens_errored, info)] in the order of the errors
+    """
+    if len(errors) == 0:
+        return []
+    file_content = open_file(file_path)
+    if windowed is None:
+        min_lines = core_config.getint('TOKENIZER', 'window_min_lines', fallback=0)
+        windowed = min_lines > 0 and file_content.count('\n') >= min_lines
+    results = [ None ] * len(errors)
+    if windowed:
+        source_buffer = SourceBuffer(file_content)
+        for index, error in enumerate(errors):
+            results[index] = get_region_repair_context(source_buffer, error, policy=policy)
+    if None in results:
+        spaces, tokens = tokenize_with_white_space(file_content)
+        token_lines = [ token.position[0] for token in tokens ]
+        for index, error in enumerate(errors):
+            if results[index] is None:
+                results[index] = get_repair_context(spaces, tokens, token_lines, error, policy=policy)
+    return results
+
+# the comments and the literals, to find the line starts where a lexer can start
+_SKIPPED_RE = re.compile(r'''//[^\n]*|/\*.*?\*/|"(?:[^"\\]|\\.)*"|'(?:[^'\\]|\\.)*'|(?P<unterminated>/\*|["'])''', re.S)
+
+# the lines lexed before and after the error line
+REGION_MARGIN_LINES = 30
+
+def find_region(source_buffer, from_line, to_line):
+    """
+    A region of the source containing the lines from_line to to_line, whose bounds are line starts
+    outside of the comments and the literals
+    :return: (from_offset, to_offset), None when the lines of javalang before it are not the real ones
+    or when a comment or a literal is not terminated
+    """
+    text = source_buffer.text
+    from_offset = source_buffer.get_line_start(max(from_line, 1) - 1)
+    to_offset = source_buffer.get_line_start(max(to_line, 1))
+    spans = []
+    for match in _SKIPPED_RE.finditer(text):
+        if match.start() >= to_offset:
+            break
+        if match.lastgroup == 'unterminated':
+            return None
+        if match.start() < from_offset and match.group()[0] in '"\'' and '\n' in match.group():
+            # javalang does not count the new lines of the literals
+            return None
+        if match.end() > to_offset:
+            # to the end of the line of the end of the span
+            to_offset = source_buffer.get_line_start(source_buffer.get_position(match.end() - 1)[0])
+        spans.append((match.start(), match.end()))
+    for start, end in reversed(spans):
+        if start < from_offset < end:
+            from_offset = source_buffer.get_line_start(source_buffer.get_position(start)[0] - 1)
+    return from_offset, to_offset
+
+def get_region_repair_context(source_buffer, error, lexer=None, policy=None):
+    """
+    The context of get_repair_context from the tokens of a region around the error line only,
+    for the huge files. The indexes of the info are the ones of the region, see info['region'] and
+    get_file_error_info.
+    :return: (tokens_errored, info), None when the region is not enough to give the same context
+    as the whole file
+    """
+    if lexer is None:
+        lexer = get_default_lexer()
+    if policy is None:
+        policy = window_policy.get_window_policy(error['type'])
+    text = source_buffer.text
+    if '\\u' in text:
+        return None
+    line = int(error['line'])
+    margin = max(REGION_MARGIN_LINES, 2 * policy.n_lines)
+    region = find_region(source_buffer, line - margin, line + margin)
+    if region is None:
+        return None
+    from_offset, to_offset = region
+    at_start = from_offset == 0
+    at_end = to_offset >= len(text)
+    if at_start and at_end:
+        return None
+    try:
+        if at_start:
+            tokens = _LEXERS[lexer](text[:to_offset], parse_comments=True)
+        else:
+            # the new line makes the columns of the first line 1-based as in the file
+            tokens = _LEXERS[lexer]('\n' + text[from_offset:to_offset], parse_comments=True)
+        tokens = list(tokens)
+    except Exception:
+        return None
+    if len(tokens) == 0:
+        return None
+    position_last_line = 1
+    if not at_start:
+        shift = source_buffer.get_position(from_offset)[0] - 2
+        for token in tokens:
+            token.position = javalang_tokenizer.Position(token.position[0] + shift, token.position[1])
+        position_last_line = tokens[0].position[1]
+    spaces = compute_white_space(tokens, relative=True, position_last_line=position_last_line)
+    spaces.append((1,0))
+    token_lines = [ token.position[0] for token in tokens ]
+    if bisect.bisect_left(token_lines, line - policy.n_lines) > bisect.bisect_right(token_lines, line + policy.n_lines) - 1:
+        # the window depends on the number of tokens of the file
+        return None
+    token_line_start = bisect.bisect_left(token_lines, line)
+    if 'column' in error and (token_line_start == len(tokens) or token_lines[token_line_start] != line):
+        # no token on the line, the window depends on the last tokens of the file
+        return None
+    tokens_errored, info = get_repair_context(spaces, tokens, token_lines, error, policy=policy)
+    # the windows cut by the bounds of the region
+    if not at_start and min(info['start'], info['from_token']) < 1:
+        return None
+    if not at_end and max(info['end'], info['to_token']) >= len(tokens):
+        return None
+    info['region'] = { 'line': tokens[0].position[0] }
+    return tokens_errored, info
 
-    token_started = False
-    token_line_start = -1
-    token_line_end = -1
-    count = 0
+def get_file_error_info(source, error_info):
+    """
+    The info of get_repair_context with the token indexes of the whole source,
+    for the infos of get_region_repair_context
+    """
+    if 'region' not in error_info:
+        return error_info
+    _, tokens = tokenize_cached(source)
+    shift = find_first_token_of_line(tokens, error_info['region']['line'])
+    file_error_info = { key: value for key, value in error_info.items() if key != 'region' }
+    for key in ('from_token', 'to_token', 'start', 'end'):
+        file_error_info[key] += shift
+    return file_error_info
+
+def get_repair_context(spaces, tokens, token_lines, error, policy=None):
+    """
+    :param token_lines: the line of each token, sorted as the tokens
+    :param policy: the sizes of the window, by default the one of the error type (see window_policy)
+    """
+    if policy is None:
+        policy = window_policy.get_window_policy(error['type'])
+    info = {}
 
     tokens_errored = []
-    n_lines = 6
-
-    start = len(tokens)
-    end = 0
-
-    from_token = 0
-    to_token = 0
-
-    for token, space in zip(tokens, spaces):
-        if token.position[0] >= int(error['line']) - n_lines and token.position[0] <= int(error['line']) + n_lines :
-            start = min(count, start)
-            end = max(count, end)
-        if not token_started and int(error['line']) == token.position[0]:
-            token_started = True
-            token_line_start = count
-        if token_started and  int(error['line']) < token.position[0]:
-            token_started = False
-            token_line_end = count
-        count += 1
-    start = max(0, start - 2)
-    end = min(len(tokens), end + 2)
+    n_lines = policy.n_lines
+    line = int(error['line'])
+
+    # the tokens from line - n_lines to line + n_lines
+    start = bisect.bisect_left(token_lines, line - n_lines)
+    end = bisect.bisect_right(token_lines, line + n_lines) - 1
+    if start > end:
+        start = len(tokens)
+        end = 0
+    start = max(0, start - policy.pad)
+    end = min(len(tokens), end + policy.pad)
+
+    # the first token of the line and the first token after the line
+    token_line_start = bisect.bisect_left(token_lines, line)
+    token_line_end = -1
+    if token_line_start < len(tokens) and token_lines[token_line_start] == line:
+        after_line = bisect.bisect_right(token_lines, line)
+        if after_line < len(tokens):
+            token_line_end = after_line
+    else:
+        token_line_start = -1
     if token_line_end == -1:
         token_line_end = token_line_start
 
-    # print(error)
-
     if 'column' in error:
         errored_token_index = -1
-        around = 10
-        
+
         column = int(error['column'])
 
         if column <= tokens[token_line_start].position[1]:
@@ -98,24 +380,17 @@ def tokenize_file_to_repair(file_path, error):
                     errored_token_index = index
                 index += 1
 
-        from_token = max(0, errored_token_index - around)
-        to_token = min(len(tokens), errored_token_index + around)
+        from_token = max(0, errored_token_index - policy.around_before)
+        to_token = min(len(tokens), errored_token_index + policy.around_after)
     else:
-        around = 2
-        around_after = 13
-        errored_token_index = -1
         if token_line_start != -1:
-            from_token = max(start, token_line_start - around)
-            to_token = min(end, token_line_end + around_after + 1)
+            from_token = max(start, token_line_start - policy.line_before)
+            to_token = min(end, token_line_end + policy.line_after + 1)
         else:
-            errored_token_index = -1
-            around = 2
-            around_after = 18
-            for token, index in zip(tokens,range(len(tokens))):
-                if token.position[0] < int(error['line']):
-                    errored_token_index = index
-            from_token = max(0, errored_token_index - around)
-            to_token = min(len(tokens), errored_token_index + 1 + around_after)
+            # the last token before the line
+            errored_token_index = bisect.bisect_left(token_lines, line) - 1
+            from_token = max(0, errored_token_index - policy.empty_line_before)
+            to_token = min(len(tokens), errored_token_index + 1 + policy.empty_line_after)
     tokens_errored_in_tag = []
     for token, space in zip(tokens[from_token:to_token], spaces[from_token:to_token]):
         tokens_errored_in_tag.append(get_token_value(token))
@@ -126,9 +401,7 @@ def tokenize_file_to_repair(file_path, error):
         tokens_errored.append(get_token_value(token))
         tokens_errored.append(get_space_value(space))
     tokens_errored.append(f'<{error["type"]}>')
-    for token, space in zip(tokens[from_token:to_token], spaces[from_token:to_token]):
-        tokens_errored.append(get_token_value(token))
-        tokens_errored.append(get_space_value(space))
+    tokens_errored += tokens_errored_in_tag
     tokens_errored.append(f'</{error["type"]}>')
     for token, space in zip(tokens[to_token:end], spaces[to_token:end]):
         tokens_errored.append(get_token_value(token))
@@ -143,8 +416,9 @@ def tokenize_file_to_repair(file_path, error):
 
     return tokens_errored, info
 
-def tokenize_errored_file_model2(file, file_orig, error):
-    tokens_errored, info = tokenize_file_to_repair(file, error)
+def tokenize_errored_file_model2(file, file_orig, error, policy=None):
+    # the indexes are compared with the ones of file_orig
+    tokens_errored, info = tokenize_file_to_repair(file, error, windowed=False, policy=policy)
 
     tokens_errored_in_tag = info['tokens_errored_in_tag']
     from_token = info['from_token']
@@ -167,31 +441,228 @@ def tokenize_errored_file_model2(file, file_orig, error):
     return tokens_errored, tokens_correct, tokens_errored_in_tag, info
 
 def de_tokenize(errored_source, error_info, new_tokens, tabulations, only_formatting=False):
-    whitespace, tokens = tokenize_with_white_space(errored_source)
-    from_token = error_info['from_token']
-    to_token = error_info['to_token']
-
+    error_info = get_file_error_info(errored_source, error_info)
+    result = de_tokenize_splice(errored_source, error_info, new_tokens, tabulations, only_formatting=only_formatting)
+    if result is not None:
+        return result
+    return de_tokenize_full(errored_source, error_info, new_tokens, tabulations, only_formatting=only_formatting)
 
+def get_new_white_space(new_tokens, only_formatting):
     if only_formatting:
         new_white_space_tokens = new_tokens
     else:
         new_white_space_tokens = new_tokens[1::2]
-    # print(new_white_space_tokens)
-    new_white_space = [ whitespace_token_to_tuple(token) for token in new_white_space_tokens ]
+    return [ whitespace_token_to_tuple(token) for token in new_white_space_tokens ]
+
+_splice_memo = {}
+
+def get_splice_info(errored_source):
+    """
+    For the last source given: the cached tokenization, the indentation of reformat after each
+    white space, and if the lines of javalang are the real lines (no new line in a literal)
+    """
+    if _splice_memo.get('source') != errored_source:
+        whitespace, tokens = tokenize_cached(errored_source)
+        positions = [0]
+        position = 0
+        for ws in whitespace:
+            if ws[0] > 0:
+                position = max(position + ws[1], 0)
+            positions.append(position)
+        real_lines = True
+        if len(tokens) > 0:
+            end = len(errored_source.rstrip())
+            last_token = tokens[-1]
+            real_lines = last_token.position[0] - 1 + last_token.value.rstrip().count('\n') + errored_source.count('\n', end) == errored_source.count('\n')
+        _splice_memo.clear()
+        _splice_memo.update(source=errored_source, whitespace=whitespace, tokens=tokens, positions=positions, real_lines=real_lines, lines=SourceBuffer(errored_source + '\n'))
+    return _splice_memo
+
+def find_first_token_of_line(tokens, line):
+    """
+    Index of the first token from the line (len(tokens) if none)
+    """
+    low, high = 0, len(tokens)
+    while low < high:
+        middle = (low + high) // 2
+        if tokens[middle].position[0] < line:
+            low = middle + 1
+        else:
+            high = middle
+    return low
+
+def is_glue_safe(tokens, whitespace, index, lexer):
+    """
+    True if the tokens around whitespace[index], written without space between them,
+    give the same tokens (e.g. '+' '+' gives '++')
+    """
+    first = index
+    while first > 0 and whitespace[first - 1] == (0, 0):
+        first -= 1
+    last = index + 1
+    while last < len(tokens) - 1 and whitespace[last] == (0, 0):
+        last += 1
+    values = [ token.value for token in tokens[first:last + 1] ]
+    try:
+        return [ token.value for token in _LEXERS[lexer](''.join(values), parse_comments=True) ] == values
+    except Exception:
+        return False
+
+def is_reformat_glue_safe(tokenized_source, original_white_spaces):
+    """
+    True if the reformat of the source gives its tokens: the white spaces changed from the original
+    ones do not write two tokens without space between them, or the tokens written so are the same
+    """
+    lexer = get_default_lexer()
+    for index, white_space in enumerate(tokenized_source.white_spaces):
+        if white_space == original_white_spaces[index] or white_space[0] > 0 or white_space[1] > 0:
+            continue
+        token = tokenized_source.tokens[index]
+        if isinstance(token, javalang_tokenizer.Comment) and token.value.endswith('\n'):
+            continue
+        if white_space != (0, 0) or not is_glue_safe(tokenized_source.tokens, tokenized_source.white_spaces, index, lexer):
+            return False
+    return True
+
+_WHITE_SPACE_RE = re.compile(r'\s*')
+
+def is_white_space_edit(source, edited_source, lexer=None):
+    """
+    True if the edited source has the same tokens as the source, with other white spaces between them.
+    The tokens of the source are matched in the edited source without lexing it, only the tokens
+    glued by the edit are lexed (see is_glue_safe)
+    """
+    if lexer is None:
+        lexer = get_default_lexer()
+    _, tokens = tokenize_cached(source, lexer=lexer)
+    # (0, 0) for the tokens written without space between them, as the white spaces of is_glue_safe
+    glued = []
+    newly_glued = []
+    position = _WHITE_SPACE_RE.match(source).end()
+    edited_position = _WHITE_SPACE_RE.match(edited_source).end()
+    for index, token in enumerate(tokens):
+        if not source.startswith(token.value, position) or not edited_source.startswith(token.value, edited_position):
+            return False
+        end = _WHITE_SPACE_RE.match(source, position + len(token.value)).end()
+        edited_end = _WHITE_SPACE_RE.match(edited_source, edited_position + len(token.value)).end()
+        glued.append((0, 0) if edited_end == edited_position + len(token.value) else (1, 0))
+        if glued[-1] == (0, 0) and end != position + len(token.value) and index + 1 < len(tokens):
+            newly_glued.append(index)
+        position, edited_position = end, edited_end
+    if position != len(source) or edited_position != len(edited_source):
+        return False
+    return all([ is_glue_safe(tokens, glued, index, lexer) for index in newly_glued ])
+
+def de_tokenize_splice(errored_source, error_info, new_tokens, tabulations, only_formatting=False):
+    """
+    Same result as de_tokenize_full, without rebuilding the whole file: only the text of the
+    tokens kept by mix_sources is written (with the indentation of reformat at this point)
+    and spliced into the lines of the errored source.
+    :return: the source, or None when the splice is not equivalent (see the conditions below)
+    """
+    splice_info = get_splice_info(errored_source)
+    whitespace, tokens, positions = splice_info['whitespace'], splice_info['tokens'], splice_info['positions']
+    from_token = error_info['from_token']
+    to_token = error_info['to_token']
+    new_white_space = get_new_white_space(new_tokens, only_formatting)
+    count = max(0, min(to_token - from_token, len(new_white_space)))
+    # mix_sources finds the tokens of the result by lexing it, the javalang lines must be the real ones
+    if not splice_info['real_lines'] or from_token + count > len(whitespace) or from_token >= len(tokens):
+        return None
+    if 'error' in error_info:
+        line = int(error_info['error']['line'])
+        from_line, to_line = line - 1, line + 1
+    else:
+        from_line, to_line = tokens[from_token].position[0], tokens[to_token].position[0]
+    # the first line of javalang has 0-based columns, see on_first_line below
+    if from_line < 2:
+        return None
+    modified = {}
+    for index in range(count):
+        ws = new_white_space[index]
+        if ws != whitespace[from_token + index]:
+            modified[from_token + index] = ws
+    lexer = get_default_lexer()
+    glued = [ index for index, ws in modified.items() if ws == (0, 0) ]
+    if len(glued) > 0:
+        new_whitespace = list(whitespace)
+        for index, ws in modified.items():
+            new_whitespace[index] = ws
+        if not all([ is_glue_safe(tokens, new_whitespace, index, lexer) for index in glued ]):
+            return None
+
+    # the tokens of mix_sources, without the comments, from from_line to to_line
+    is_code = lambda token: not isinstance(token, javalang_tokenizer.Comment)
+    first = find_first_token_of_line(tokens, from_line)
+    last = find_first_token_of_line(tokens, to_line + 1) - 1
+    while first <= last and not is_code(tokens[first]):
+        first += 1
+    while last >= first and not is_code(tokens[last]):
+        last -= 1
+
+    lines = splice_info['lines']
+    if first > last:
+        return lines.text
+
+    # reformat from the first token of the lines or of the modifications
+    start = min(first, from_token)
+    position = positions[start]
+    indentation = '\t' if tabulations else ' '
+    written = []
+    on_first_line = tokens[start].position[0] < 2
+    for index in range(start, last):
+        ws = modified.get(index, whitespace[index])
+        if index < first and (ws[0] > 0 or '\n' in tokens[index].value):
+            on_first_line = False
+        if ws[0] > 0:
+            position = max(position + ws[1], 0)
+            if index >= first:
+                written.append(str(tokens[index].value) + '\n' * ws[0] + indentation * position)
+        elif index >= first:
+            written.append(str(tokens[index].value) + ' ' * ws[1])
+    written.append(str(tokens[last].value))
+    if on_first_line:
+        return None
+
+    first_token, last_token = tokens[first], tokens[last]
+    output_source = lines.get_lines(None, from_line-1)
+    if first_token.position[0] != from_line:
+        output_source += lines.get_lines(from_line-1, first_token.position[0]-1)
+    output_source += " "*(first_token.position[1]-1)
+    output_source += ''.join(written)
+    output_source += '\n'
+    if last_token.position[0] != to_line:
+        output_source += lines.get_lines(last_token.position[0], to_line)
+    output_source += lines.get_lines(to_line, None)
+    return output_source
+
+def de_tokenize_full(errored_source, error_info, new_tokens, tabulations, only_formatting=False):
+    """
+    Rewrites the whole errored source with the new white spaces and keeps the lines around the error
+    """
+    whitespace, tokens = tokenize_cached(errored_source)
+    tokenized_source = TokenizedSource(whitespace, tokens, tabulation=tabulations)
+    from_token = error_info['from_token']
+    to_token = error_info['to_token']
+
+    new_white_space = get_new_white_space(new_tokens, only_formatting)
     # print(new_white_space)
 
     # whitespace[from_token:to_token] = new_white_space
     # whitespace[from_token:min(from_token + len(new_white_space),to_token)] = new_white_space[:min(to_token - from_token, len(new_white_space))]
     for index in range(min(to_token - from_token, len(new_white_space))):
-        whitespace[from_token + index] = new_white_space[index]
+        tokenized_source.apply_white_space(from_token + index, new_white_space[index])
 
-    result = reformat(whitespace, tokens, tabulations=tabulations)
+    result = tokenized_source.reformat()
+    # the positions of the tokens of the result are known, unless the new white spaces glue tokens
+    if not is_reformat_glue_safe(tokenized_source, whitespace):
+        tokenized_source = None
 
     if 'error' in error_info:
         line = int(error_info['error']['line'])
-        return mix_sources(errored_source, result, line-1, to_line=line+1) #result
+        return mix_sources(errored_source, result, line-1, to_line=line+1, tokenized_B=tokenized_source) #result
     else:
-        return mix_sources(errored_source, result, tokens[from_token].position[0], to_line=tokens[to_token].position[0]) #result
+        return mix_sources(errored_source, result, tokens[from_token].position[0], to_line=tokens[to_token].position[0], tokenized_B=tokenized_source) #result
     # return mix_sources(errored_source, result, tokens[from_token].position[0], to_line=tokens[to_token].position[0])
 
 def mix_files_v2(file_A_path, file_B_path, output_file, from_line, to_line=-1):
@@ -225,48 +696,50 @@ def mix_files_v2(file_A_path, file_B_path, output_file, from_line, to_line=-1):
     return save_file(output_dir, file_name, new_java_source)
 
 
-def mix_sources(source_A, source_B, from_line, to_line=-1):
+def mix_sources(source_A, source_B, from_line, to_line=-1, tokenized_B=None):
     """Put a little bit of B into A
+    :param tokenized_B: the TokenizedSource that gives B by reformat, B is not lexed when it is given
     """
     if to_line == -1:
         to_line = from_line
 
-    file_A_lines = [ line + '\n' for line in source_A.split('\n') ]
-    file_B_lines = [ line + '\n' for line in source_B.split('\n') ]
-
-    tokens_A = javalang_tokenizer.tokenize(source_A)
-    tokens_B = javalang_tokenizer.tokenize(source_B)
+    # the lines of the sources, each one with a new line
+    file_A_lines = SourceBuffer(source_A + '\n')
+    file_B_lines = SourceBuffer(source_B + '\n')
 
-    tokens = zip(tokens_A, tokens_B)
-    lines = range(from_line, to_line)
+    # the tokens without the comments, as javalang_tokenizer.tokenize(source) gives them
+    tokens_A = [ token for token in tokenize_cached(source_A)[1] if not isinstance(token, javalang_tokenizer.Comment) ]
+    if tokenized_B is None:
+        tokens_B = [ (token.position, token.value) for token in tokenize_cached(source_B)[1] if not isinstance(token, javalang_tokenizer.Comment) ]
+    else:
+        tokens_B = [ (index, token.value) for index, token in enumerate(tokenized_B.tokens) if not isinstance(token, javalang_tokenizer.Comment) ]
+        # only the positions of the tokens used below are computed
+        get_position_B = lambda token: (tokenized_B.get_position(token[0]), token[1])
 
     output_source = ""
 
-    first_part = ''.join(file_A_lines[:(from_line-1)])
+    first_part = file_A_lines.get_lines(None, from_line-1)
     output_source += first_part
-    from_token = None
-    first_token_of_A = None
-    to_token = None
-    last_token_of_A = None
-    for token_A, token_B in tokens:
-        if token_A.position[0] >= from_line and token_A.position[0] <= to_line:
-            if 'form_token' not in locals():
-                form_token = token_B
-                first_token_of_A = token_A
-            to_token = token_B
-            last_token_of_A = token_A
-    # print(first_token_of_A,last_token_of_A)
-    if last_token_of_A:
+    # the tokens of A from from_line to to_line, and the tokens of B at the same indexes
+    first_index = find_first_token_of_line(tokens_A, from_line)
+    last_index = min(find_first_token_of_line(tokens_A, to_line + 1), len(tokens_B)) - 1
+    if first_index <= last_index:
+        form_token = tokens_B[first_index]
+        first_token_of_A = tokens_A[first_index]
+        to_token = tokens_B[last_index]
+        last_token_of_A = tokens_A[last_index]
+        if tokenized_B is not None:
+            form_token, to_token = get_position_B(form_token), get_position_B(to_token)
         if first_token_of_A.position[0] != from_line:
-            output_source += ''.join(file_A_lines[(from_line-1):(first_token_of_A.position[0]-1)])
+            output_source += file_A_lines.get_lines(from_line-1, first_token_of_A.position[0]-1)
         output_source += " "*(first_token_of_A.position[1]-1)
-        output_source += source_B[(len(''.join(file_B_lines[:(form_token.position[0]-1)])) + form_token.position[1] - 1):(len(''.join(file_B_lines[:(to_token.position[0]-1)])) + to_token.position[1] + len(to_token.value) - 1)]
+        output_source += source_B[file_B_lines.get_offset(*form_token[0]):(file_B_lines.get_offset(*to_token[0]) + len(to_token[1]))]
         output_source += '\n'
         if last_token_of_A.position[0] != to_line:
-            output_source += ''.join(file_A_lines[(last_token_of_A.position[0]):(to_line)])
-        output_source += ''.join(file_A_lines[(to_line):])
+            output_source += file_A_lines.get_lines(last_token_of_A.position[0], to_line)
+        output_source += file_A_lines.get_lines(to_line, None)
     else:
-        output_source += ''.join(file_A_lines[(from_line-1):])
+        output_source += file_A_lines.get_lines(from_line-1, None)
 
     return output_source
 
@@ -278,20 +751,15 @@ def mix_files(file_A_path, file_B_path, output_file, from_line, to_line=-1):
     if to_line == -1:
         to_line = from_line
 
-    with open(file_A_path) as f:
-        file_A_lines = f.readlines()
+    file_A_content = SourceBuffer.from_file(file_A_path).text
 
     try:
-        with open(file_B_path) as f:
-            file_B_lines = f.readlines()
+        file_B_content = SourceBuffer.from_file(file_B_path).text
     except FileNotFoundError:
         with open(output_file, "w") as output_file_object:
-            output_file_object.write("".join(file_A_lines))
+            output_file_object.write(file_A_content)
             return output_file
 
-    file_A_content = "".join(file_A_lines)
-    file_B_content = "".join(file_B_lines)
-
     output_source = mix_sources(file_A_content, file_B_content, from_line, to_line=to_line)
 
     output_dir = "/".join(output_file.split("/")[:-1])
@@ -337,12 +805,11 @@ def get_char_pos_from_lines(file_path, from_line, to_line=-1):
     """
     if to_line == -1:
         to_line = from_line
-    file_lines = None
-    with open(file_path) as f:
-        file_lines = f.readlines()
-    if file_lines:
-        from_char = len(''.join(file_lines[:(from_line-1)]))
-        to_char = from_char + len(''.join(file_lines[(from_line-1):to_line]))
+    file_lines = SourceBuffer.from_file(file_path)
+    if len(file_lines) > 0:
+        from_char = file_lines.get_lines_span(None, from_line-1)[1]
+        lines_from_char, lines_to_char = file_lines.get_lines_span(from_line-1, to_line)
+        to_char = from_char + lines_to_char - lines_from_char
         return (from_char, to_char)
     else:
         return (-1, -1)
@@ -355,16 +822,40 @@ if __name__ == "__main__":
         whitespace, tokens = tokenize_with_white_space(open_file(sys.argv[2]))
         #print(reformat(whitespace, tokens))
         print("\n".join([str(e) for e in zip(whitespace, tokens)]))
+    elif (sys.argv[1] == "cache_stats"):
+        # tokenizes the files twice, the second pass should only hit the cache
+        for _ in range(2):
+            for file_path in sys.argv[2:]:
+                tokenize_with_white_space(open_file(file_path))
+        print(get_tokenization_cache_stats())
     elif (sys.argv[1] == "mix"):
         mix_files(sys.argv[2], sys.argv[3], sys.argv[4], 62, 64)
 
 
 class TokenizedSource:
+    """
+    The tokens and white spaces of a source, frozen (tuples) when they come from the cache,
+    copy() gives a source that can be modified.
+    get_position gives the positions of the tokens in reformat() as javalang gives them, they are
+    computed lazily and apply_white_space keeps them up to date without lexing the source again.
+    """
     def __init__(self, white_spaces, tokens, tabulation=False, relative=True):
         self.tokens = tokens
         self.white_spaces = white_spaces
         self.tabulation = tabulation
         self.relative = relative
+        # the positions of the first tokens and the indentation of reformat after their white space
+        self.lines = []
+        self.columns = []
+        self.indents = []
+        # the (index, delta) of the line shifts not applied to the positions yet
+        self.line_shifts = []
+
+    def is_frozen(self):
+        return isinstance(self.white_spaces, tuple)
+
+    def copy(self):
+        return TokenizedSource(list(self.white_spaces), list(self.tokens), tabulation=self.tabulation, relative=self.relative)
 
     def reformat(self):
         return reformat(self.white_spaces, self.tokens, tabulations=self.tabulation, relative=self.relative)
@@ -372,11 +863,89 @@ class TokenizedSource:
     def enumerate_3_grams(self):
         return enumerate(zip(self.tokens, self.white_spaces, self.tokens[1:]))
 
+    def get_next_position(self, index, line, column, indent, white_space):
+        """
+        The position of the token after the one at index (at line, column) in reformat, and the indentation after it
+        """
+        value = self.tokens[index].value
+        if isinstance(self.tokens[index], javalang_tokenizer.Comment) and '\n' in value:
+            # javalang only counts the new lines of the comments
+            line += value.count('\n')
+            column = len(value) - value.rfind('\n')
+        else:
+            column += len(value)
+        if white_space[0] > 0:
+            if self.relative:
+                indent = max(indent + white_space[1], 0)
+                return line + white_space[0], indent + 1, indent
+            return line + white_space[0], max(white_space[1], 0) + 1, indent
+        return line, column + max(white_space[1], 0), indent
+
+    def get_position(self, index):
+        """
+        (line, column) of the token at index in reformat()
+        """
+        self.apply_line_shifts()
+        if len(self.lines) == 0:
+            # the first line of javalang has 0-based columns
+            self.lines.append(1)
+            self.columns.append(0)
+            self.indents.append(0)
+        for current in range(len(self.lines) - 1, index):
+            line, column, indent = self.get_next_position(current, self.lines[current], self.columns[current], self.indents[current], self.white_spaces[current])
+            self.lines.append(line)
+            self.columns.append(column)
+            self.indents.append(indent)
+        return (self.lines[index], self.columns[index])
+
+    def apply_line_shifts(self):
+        if len(self.line_shifts) == 0:
+            return
+        shifts = sorted(self.line_shifts)
+        self.line_shifts = []
+        shift = 0
+        next_shift = 0
+        for index in range(shifts[0][0], len(self.lines)):
+            while next_shift < len(shifts) and shifts[next_shift][0] <= index:
+                shift += shifts[next_shift][1]
+                next_shift += 1
+            self.lines[index] += shift
+
+    def apply_white_space(self, index, white_space):
+        """
+        Replace the white space after the token at index. The columns of the tokens of the line after it
+        are updated in place, the shift of the lines of the tokens after it is applied lazily
+        (and the positions after it are dropped when the indentation of the following lines changes)
+        """
+        if self.is_frozen():
+            self.white_spaces = list(self.white_spaces)
+        old_white_space = self.white_spaces[index]
+        self.white_spaces[index] = white_space
+        if index + 1 >= len(self.lines) or old_white_space == white_space:
+            return
+        self.apply_line_shifts()
+        line, column, indent = self.get_next_position(index, self.lines[index], self.columns[index], self.indents[index], white_space)
+        if indent != self.indents[index + 1]:
+            del self.lines[index + 1:], self.columns[index + 1:], self.indents[index + 1:]
+            return
+        line_shift = line - self.lines[index + 1]
+        column_shift = column - self.columns[index + 1]
+        # the tokens of the line of the token after index
+        last = index + 1
+        while True:
+            self.columns[last] += column_shift
+            if last + 1 >= len(self.lines) or self.lines[last + 1] != self.lines[last]:
+                break
+            last += 1
+        if line_shift != 0:
+            self.line_shifts.append((index + 1, line_shift))
+
 class Tokenizer:
-    def __init__(self, tabulation=False, relative=True):
+    def __init__(self, tabulation=False, relative=True, lexer=None):
         self.tabulation = tabulation
         self.relative = relative
+        self.lexer = lexer if lexer is not None else get_default_lexer()
 
     def tokenize(self, source):
-        white_spaces, tokens = tokenize_with_white_space(source, relative=self.relative)
+        white_spaces, tokens = tokenize_cached(source, relative=self.relative, lexer=self.lexer)
         return TokenizedSource(white_spaces, tokens, tabulation=self.tabulation, relative=self.relative)
@@ -0,0 +1,194 @@
+# -*- coding: utf-8 -*-
+
+"""
+The sizes of the windows of tokenizer.get_repair_context, by error type.
+The default policy is the historical fixed window, the learned policies are the minimal
+spans containing the fixes of the synthetic errors of each type.
+The policies used by the tokenizer are the ones of the json file [TOKENIZER] window_policies
+(the default policy for all the errors when it is empty).
+
+python window_policy.py learn <synthetic dataset dirs...>
+python window_policy.py report <window_policies.json> <synthetic dataset dirs...>
+"""
+
+from core import *
+import tokenizer
+import ml
+
+import math
+
+# the sequences longer than the -src_seq_length and -tgt_seq_length of the preprocessing are dropped
+SRC_SEQ_LENGTH = 650
+TGT_SEQ_LENGTH = 105
+
+class WindowPolicy:
+    """
+    n_lines: the lines of context before and after the error line, pad: the tokens added around them
+    around_before/around_after: the tokens of the tag around the errored token (errors with a column)
+    line_before/line_after: the tokens of the tag before the line and after it (errors without column)
+    empty_line_before/empty_line_after: the same when the error line has no token
+    """
+    def __init__(self, n_lines=6, pad=2, around_before=10, around_after=10, line_before=2, line_after=13, empty_line_before=2, empty_line_after=18):
+        self.n_lines = n_lines
+        self.pad = pad
+        self.around_before = around_before
+        self.around_after = around_after
+        self.line_before = line_before
+        self.line_after = line_after
+        self.empty_line_before = empty_line_before
+        self.empty_line_after = empty_line_after
+
+    def to_json(self):
+        return dict(self.__dict__)
+
+    @staticmethod
+    def from_json(content):
+        return WindowPolicy(**content)
+
+    def __repr__(self):
+        return f'WindowPolicy({self.to_json()})'
+
+DEFAULT_POLICY = WindowPolicy()
+
+# the window of the tag reduced to the errored token or line
+ANCHOR_POLICY = WindowPolicy(n_lines=1000, pad=0, around_before=0, around_after=0, line_before=0, line_after=0, empty_line_before=0, empty_line_after=0)
+
+_policies = {}
+
+def load_window_policies(path):
+    """
+    :return: {error type: WindowPolicy}
+    """
+    return { error_type: WindowPolicy.from_json(content) for error_type, content in open_json(path).items() }
+
+def get_window_policies():
+    path = core_config.get('TOKENIZER', 'window_policies', fallback='')
+    if path not in _policies:
+        _policies[path] = load_window_policies(path) if path else {}
+    return _policies[path]
+
+def get_window_policy(error_type):
+    return get_window_policies().get(error_type, DEFAULT_POLICY)
+
+def get_synthetic_errors(dataset_dirs, sub_set):
+    """
+    :return: [(errored file, original file, error)] of the sub set of the synthetic datasets
+    """
+    synthetic_errors = []
+    for dataset_dir in dataset_dirs:
+        sub_set_dir = os.path.join(dataset_dir, sub_set)
+        if not os.path.exists(sub_set_dir):
+            continue
+        for id in sorted(list_folders(sub_set_dir), key=int):
+            synthetic_errors.append(ml.get_synthetic_error(dataset_dir, sub_set, id))
+    return synthetic_errors
+
+def get_fix(file, file_orig, error):
+    """
+    The indexes of the white spaces changed by the fix and the window of the anchor policy
+    :return: (fixed indexes, kind of window, anchor info, token lines), None if the tokens are not the same
+    """
+    spaces, tokens = tokenizer.tokenize_with_white_space(open_file(file))
+    spaces_orig, tokens_orig = tokenizer.tokenize_with_white_space(open_file(file_orig))
+    if len(tokens) != len(tokens_orig):
+        return None
+    fixed = [ index for index, (space, space_orig) in enumerate(zip(spaces, spaces_orig)) if space != space_orig ]
+    if len(fixed) == 0:
+        return None
+    token_lines = [ token.position[0] for token in tokens ]
+    _, info = tokenizer.get_repair_context(spaces, tokens, token_lines, error, policy=ANCHOR_POLICY)
+    if info['to_token'] < info['from_token']:
+        return None
+    if 'column' in error:
+        kind = 'around'
+    elif int(error['line']) in token_lines:
+        kind = 'line'
+    else:
+        kind = 'empty_line'
+    return fixed, kind, info, token_lines
+
+def get_quantile(values, quantile):
+    values = sorted(values)
+    return values[max(0, math.ceil(quantile * len(values)) - 1)]
+
+def learn(dataset_dirs, quantile=0.99):
+    """
+    For each error type, the spans containing the fixes of the given quantile of the synthetic errors
+    of the learning sets
+    :return: {error type: WindowPolicy}
+    """
+    needed = {}
+    for file, file_orig, error in tqdm(get_synthetic_errors(dataset_dirs, 'learning'), desc='learning'):
+        fix = get_fix(file, file_orig, error)
+        if fix is None:
+            continue
+        fixed, kind, info, token_lines = fix
+        values = needed.setdefault(error['type'], {})
+        values.setdefault(f'{kind}_before', []).append(max(0, info['from_token'] - min(fixed)))
+        values.setdefault(f'{kind}_after', []).append(max(0, max(fixed) - info['to_token'] + 1))
+        line = int(error['line'])
+        values.setdefault('n_lines', []).append(max([ abs(token_lines[index] - line) for index in fixed ]))
+    policies = {}
+    for error_type, values in needed.items():
+        policy = WindowPolicy(**{ key: get_quantile(value, quantile) for key, value in values.items() })
+        policy.n_lines = max(1, policy.n_lines)
+        policies[error_type] = policy
+    return policies
+
+def evaluate(synthetic_errors, get_policy):
+    """
+    The input length and the repair rate of the policies: the repair is possible when the fix
+    is in the tag and the sequences are not dropped by the preprocessing
+    :return: {error type: {'errors', 'input_length', 'output_length', 'fix_in_tag', 'repair_rate'}}
+    """
+    results = {}
+    for file, file_orig, error in synthetic_errors:
+        fix = get_fix(file, file_orig, error)
+        if fix is None:
+            continue
+        fixed = fix[0]
+        tokens_errored, info = tokenizer.tokenize_file_to_repair(file, error, windowed=False, policy=get_policy(error['type']))
+        fix_in_tag = info['from_token'] <= min(fixed) and max(fixed) < info['to_token']
+        # the output of the models is only the formatting
+        output_length = max(0, info['to_token'] - info['from_token'])
+        result = results.setdefault(error['type'], { 'errors': 0, 'input_length': 0, 'output_length': 0, 'fix_in_tag': 0, 'repair_rate': 0 })
+        result['errors'] += 1
+        result['input_length'] += len(tokens_errored)
+        result['output_length'] += output_length
+        result['fix_in_tag'] += int(fix_in_tag)
+        result['repair_rate'] += int(fix_in_tag and len(tokens_errored) <= SRC_SEQ_LENGTH and output_length <= TGT_SEQ_LENGTH)
+    total = { 'errors': 0, 'input_length': 0, 'output_length': 0, 'fix_in_tag': 0, 'repair_rate': 0 }
+    for result in results.values():
+        total = dict_sum(total, result)
+    results['all'] = total
+    for result in results.values():
+        for key in ('input_length', 'output_length', 'fix_in_tag', 'repair_rate'):
+            result[key] = result[key] / result['errors'] if result['errors'] else 0
+    return results
+
+def report(policies, dataset_dirs):
+    """
+    The default and the learned policies on the testing sets
+    """
+    synthetic_errors = get_synthetic_errors(dataset_dirs, 'testing')
+    return {
+        'default': evaluate(synthetic_errors, lambda error_type: DEFAULT_POLICY),
+        'learned': evaluate(synthetic_errors, lambda error_type: policies.get(error_type, DEFAULT_POLICY))
+    }
+
+def print_report(results):
+    print(f'{"policy":<8} {"error type":<30} {"errors":>7} {"input":>8} {"output":>8} {"fix in tag":>10} {"repair rate":>11}')
+    for policy_name, policy_results in results.items():
+        for error_type, result in sorted(policy_results.items()):
+            print(f'{policy_name:<8} {error_type:<30} {result["errors"]:>7} {result["input_length"]:>8.1f} {result["output_length"]:>8.1f} {result["fix_in_tag"]:>10.3f} {result["repair_rate"]:>11.3f}')
+
+if __name__ == "__main__":
+    if sys.argv[1] == 'learn':
+        policies = learn(sys.argv[2:])
+        save_json(get_output_dir(), 'window_policies.json', { error_type: policy.to_json() for error_type, policy in policies.items() }, sort=True)
+        for error_type, policy in sorted(policies.items()):
+            print(f'{error_type}: {policy}')
+    elif sys.argv[1] == 'report':
+        results = report(load_window_policies(sys.argv[2]), sys.argv[3:])
+        save_json(get_output_dir(), 'window_policies_report.json', results)
+        print_report(results)
@@ -0,0 +1,136 @@
+# -*- coding: utf-8 -*-
+
+"""
+Minimal compilation unit around a window of lines, used to validate a local repair
+of a big file without auditing the whole file (see checkstyle.check_window).
+
+The stub keeps, with their original text:
+ - the lines up to the opening brace of the top-level type that contains the window
+   (package, imports, type declaration), so the indentation context is the same
+ - the blank lines before the member (field, method, inner type...) that contains the window
+ - the member itself, with its comments and annotations
+ - the blank lines after the member and the closing brace of the type
+"""
+
+from core import *
+from javalang import tokenizer as javalang_tokenizer
+
+import difflib
+
+# the stub is not worth it when it keeps more than this share of the lines
+_MAX_STUB_SHARE = 0.5
+
+def get_end_line(token):
+    # the line comments of javalang end with their new line
+    return token.position[0] + token.value.rstrip('\r\n').count('\n')
+
+def is_comment(token):
+    return isinstance(token, javalang_tokenizer.Comment)
+
+def next_code_token(tokens, index):
+    for token in tokens[index + 1:]:
+        if not is_comment(token):
+            return token
+    return None
+
+def find_members(tokens):
+    """
+    The members of the top-level types
+    :return: [(index of the '{' of the type, index of its '}', [(first token index, last token index)])]
+    """
+    types = []
+    depth = 0
+    type_open = None
+    members = []
+    member_start = None
+    for index, token in enumerate(tokens):
+        value = token.value if isinstance(token, javalang_tokenizer.Separator) else None
+        if depth == 0:
+            if value == '{':
+                type_open = index
+                members = []
+                member_start = None
+                depth = 1
+            continue
+        if depth == 1 and member_start is None and value != '}':
+            member_start = index
+        if value == '{':
+            depth += 1
+        elif value == '}':
+            depth -= 1
+            if depth == 0:
+                types.append((type_open, index, members))
+            elif depth == 1:
+                # the body of a member is closed, unless it is an initializer (= {...}; or new A() {...};)
+                next_token = next_code_token(tokens, index)
+                if next_token is None or next_token.value not in (';', ',', ')', '.'):
+                    members.append((member_start, index))
+                    member_start = None
+        elif value == ';' and depth == 1:
+            members.append((member_start, index))
+            member_start = None
+    return types
+
+def is_first_on_line(tokens, index):
+    return index == 0 or get_end_line(tokens[index - 1]) < tokens[index].position[0]
+
+def is_last_on_line(tokens, index):
+    return index == len(tokens) - 1 or tokens[index + 1].position[0] > get_end_line(tokens[index])
+
+def build_stub(source, from_line, to_line):
+    """
+    :return: (stub source, original line number of each stub line, (first, last) original lines
+             where the errors of the stub can be trusted) or None when no safe stub exists
+    """
+    try:
+        tokens = list(javalang_tokenizer.tokenize(source, parse_comments=True))
+    except Exception:
+        return None
+    lines = source.split('\n')
+    for type_open, type_close, members in find_members(tokens):
+        if not tokens[type_open].position[0] < from_line <= to_line < tokens[type_close].position[0]:
+            continue
+        for first, last in members:
+            first_line = tokens[first].position[0]
+            last_line = get_end_line(tokens[last])
+            # the first line of the member depends on what precedes it (blank lines, separators)
+            if not first_line < from_line <= to_line <= last_line:
+                continue
+            open_line = tokens[type_open].position[0]
+            close_line = tokens[type_close].position[0]
+            # the kept lines must not contain a part of the removed tokens
+            if not (is_first_on_line(tokens, first) and is_last_on_line(tokens, last)
+                    and is_last_on_line(tokens, type_open)
+                    and is_first_on_line(tokens, type_close) and is_last_on_line(tokens, type_close)):
+                return None
+            before_line = get_end_line(tokens[first - 1]) if first > 0 else 0
+            after_line = tokens[last + 1].position[0] if last + 1 < len(tokens) else len(lines)
+            kept = list(range(1, open_line + 1)) \
+                + list(range(max(open_line, before_line) + 1, first_line)) \
+                + list(range(first_line, last_line + 1)) \
+                + list(range(last_line + 1, min(after_line, close_line))) \
+                + [close_line]
+            if len(kept) > _MAX_STUB_SHARE * len(lines):
+                return None
+            stub_lines = [ lines[line - 1] for line in kept ]
+            if source.endswith('\n'):
+                stub_lines.append('')
+            return ('\n'.join(stub_lines), kept, (first_line + 1, last_line))
+        return None
+    return None
+
+def get_changed_lines(original, modified):
+    """
+    :return: the (first, last) lines of modified that differ from original, None when they are the same
+    """
+    original_lines = original.split('\n')
+    modified_lines = modified.split('\n')
+    changed = []
+    for tag, _, _, first, last in difflib.SequenceMatcher(None, original_lines, modified_lines, autojunk=False).get_opcodes():
+        if tag == 'equal':
+            continue
+        # a deletion changes the lines around it
+        changed += [first + 1, max(first + 1, last)] if last > first else [max(first, 1), min(first + 1, len(modified_lines))]
+    if len(changed) == 0:
+        return None
+    return (min(changed), max(changed))